@@ -5,8 +5,11 @@ import java.util.Properties;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
 import org.openmrs.module.Activator;
 import org.openmrs.module.BaseModuleActivator;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.DaemonTokenAware;
 import org.openmrs.module.formentry.migration.MigrateFormEntryXsnsThread;
 
 /**
@@ -14,10 +17,12 @@ import org.openmrs.module.formentry.migration.MigrateFormEntryXsnsThread;
  * The class checks for property deprecation, loads in runtime properties,
  * and starts up the xsn migration if it hasn't happened already
  */
-public class FormEntryActivator extends BaseModuleActivator  {
+public class FormEntryActivator extends BaseModuleActivator implements DaemonTokenAware {
 
 	private Log log = LogFactory.getLog(this.getClass());
 	
+	private static DaemonToken daemonToken = null;
+	
 	private String[] deprecatedRuntimeProperties = {"formentry.starter_xsn_folder_path", 
 			"formentry.infopath.publish_url",
 			"formentry.infopath.publish_path",
@@ -59,6 +64,17 @@ public class FormEntryActivator extends BaseModuleActivator  {
 		//	throw new ModuleException(OpenmrsUtil.join(errorMessages, " \n"));
 		
 		
+		// keep the cached settings in step with their global properties
+		Context.getAdministrationService().addGlobalPropertyListener(FormEntryConfiguration.getInstance());
+		
+		// initialize velocity now rather than during the first form download
+		try {
+			FormEntryTemplateCache.getVelocityEngine();
+		}
+		catch (Exception e) {
+			log.error("velocity init failed", e);
+		}
+		
 		// migrate the xsns
 		if (MigrateFormEntryXsnsThread.isActive() == false) {
 			// Spawn a thread to do the xsn migration from filesystem to db
@@ -68,6 +84,32 @@ public class FormEntryActivator extends BaseModuleActivator  {
 			migrateXsnThread.setName("Migrate Form Entry XSNs Thread");
 			migrateXsnThread.start();
 		}
+		
+		// compile the form xslts before the queue processor needs them, as the daemon user rather 
+		// than sharing the context of whoever started the module
+		if (daemonToken == null) {
+			log.warn("No daemon token for the formentry module, the form xslts are compiled when first used");
+		} else if (PrecompileFormXsltsThread.isActive() == false) {
+			PrecompileFormXsltsThread.setActive(true);
+			Daemon.runInDaemonThread(new PrecompileFormXsltsThread(), daemonToken);
+		}
+	}
+	
+	/**
+	 * @see org.openmrs.module.DaemonTokenAware#setDaemonToken(org.openmrs.module.DaemonToken)
+	 */
+	public void setDaemonToken(DaemonToken token) {
+		daemonToken = token;
+	}
+	
+	/**
+	 * Gets the token that lets the module run work in daemon threads, each of which has its own
+	 * session and runs as the daemon user (see {@link org.openmrs.api.context.Daemon})
+	 * 
+	 * @return the module's daemon token or null if the module hasn't been given one
+	 */
+	public static DaemonToken getDaemonToken() {
+		return daemonToken;
 	}
 	
 	/**
@@ -79,6 +121,18 @@ public class FormEntryActivator extends BaseModuleActivator  {
 		
 		// stop the migration xsn thread if its running
 		MigrateFormEntryXsnsThread.setActive(false);
+		PrecompileFormXsltsThread.setActive(false);
+		RebuildXsnsJob.cancelAll();
+		
+		// release the compiled xslts, schemas, templates and the xsn data held in memory
+		FormEntryXsltCache.clear();
+		FormEntrySchemaCache.clear();
+		FormEntryTemplateCache.clear();
+		FormEntryXsnCache.clear();
+		
+		// stop listening for changes to the cached settings
+		Context.getAdministrationService().removeGlobalPropertyListener(FormEntryConfiguration.getInstance());
+		FormEntryConfiguration.clear();
 		
 	}
 	
@@ -0,0 +1,264 @@
+package org.openmrs.module.formentry;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.hl7.HL7Source;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * Caches the module settings that the queue processor needs for every queue item and those used
+ * by every form download so that they don't have to be read from the database each time. The
+ * cached values are loaded on first use and dropped by this class (registered as a
+ * {@link GlobalPropertyListener} when the module starts) whenever the global property they come
+ * from is changed or deleted.
+ */
+public class FormEntryConfiguration implements GlobalPropertyListener {
+
+	private static Log log = LogFactory.getLog(FormEntryConfiguration.class);
+
+	private static final FormEntryConfiguration instance = new FormEntryConfiguration();
+
+	private static volatile File queueDir = null;
+
+	private static volatile String archiveDirPattern = null;
+
+	private static volatile HL7Source defaultHL7Source = null;
+
+	private static volatile Integer prefillMaxEncounters = null;
+
+	private static volatile Map<String, String> formGlobalProperties = null;
+
+	private static volatile String formGlobalPropertiesPrefix = null;
+
+	private static final Object lock = new Object();
+
+	/**
+	 * Incremented whenever cached values are dropped, a value that was being loaded meanwhile may be
+	 * stale and is not cached
+	 */
+	private static int invalidations = 0;
+
+	private FormEntryConfiguration() {
+	}
+
+	/**
+	 * @return the listener to register with the administration service
+	 */
+	public static FormEntryConfiguration getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Gets the directory where queue items are stored
+	 *
+	 * @return the queue directory
+	 * @see FormEntryConstants#FORMENTRY_GP_QUEUE_DIR
+	 */
+	public static File getQueueDir() {
+		File dir = queueDir;
+		if (dir == null) {
+			int invalidationsBefore = getInvalidations();
+			String folderName = Context.getAdministrationService().getGlobalProperty(
+			    FormEntryConstants.FORMENTRY_GP_QUEUE_DIR, FormEntryConstants.FORMENTRY_GP_QUEUE_DIR_DEFAULT);
+			dir = OpenmrsUtil.getDirectoryInApplicationDataDirectory(folderName);
+			if (log.isDebugEnabled())
+				log.debug("Loaded formentry queue directory from global properties: " + dir.getAbsolutePath());
+			synchronized (lock) {
+				if (invalidations == invalidationsBefore)
+					queueDir = dir;
+			}
+		}
+
+		return dir;
+	}
+
+	/**
+	 * Gets the name of the directory where archive items are stored, which may contain date
+	 * variables
+	 *
+	 * @return the archive directory pattern
+	 * @see FormEntryConstants#FORMENTRY_GP_QUEUE_ARCHIVE_DIR
+	 * @see FormEntryUtil#replaceVariables(String, java.util.Date)
+	 * @should cache the value until its global property changes
+	 * @should not cache a value whose global property changed while it was loading
+	 * @should not cache a value that was loading while the cache was cleared
+	 */
+	public static String getArchiveDirPattern() {
+		String pattern = archiveDirPattern;
+		if (pattern == null) {
+			int invalidationsBefore = getInvalidations();
+			pattern = Context.getAdministrationService().getGlobalProperty(
+			    FormEntryConstants.FORMENTRY_GP_QUEUE_ARCHIVE_DIR, FormEntryConstants.FORMENTRY_GP_QUEUE_ARCHIVE_DIR_DEFAULT);
+			synchronized (lock) {
+				if (invalidations == invalidationsBefore)
+					archiveDirPattern = pattern;
+			}
+		}
+
+		return pattern;
+	}
+
+	/**
+	 * Gets the HL7 source that transformed queue items are saved with
+	 *
+	 * @return the hl7 source or null if no source has the configured name
+	 * @see FormEntryConstants#FORMENTRY_GP_DEFAULT_HL7_SOURCE
+	 */
+	public static HL7Source getDefaultHL7Source() {
+		HL7Source source = defaultHL7Source;
+		if (source == null) {
+			int invalidationsBefore = getInvalidations();
+			String sourceName = Context.getAdministrationService().getGlobalProperty(
+			    FormEntryConstants.FORMENTRY_GP_DEFAULT_HL7_SOURCE, FormEntryConstants.FORMENTRY_DEFAULT_HL7_SOURCE_NAME);
+			source = Context.getHL7Service().getHL7SourceByName(sourceName);
+			if (source == null)
+				log.warn("No HL7 source found with name: " + sourceName);
+			synchronized (lock) {
+				if (invalidations == invalidationsBefore)
+					defaultHL7Source = source;
+			}
+		}
+
+		return source;
+	}
+
+	/**
+	 * @return the number of most recent encounters made available to prefilled forms, 0 for all
+	 */
+	public static int getPrefillMaxEncounters() {
+		Integer max = prefillMaxEncounters;
+		if (max == null) {
+			int invalidationsBefore = getInvalidations();
+			String value = Context.getAdministrationService().getGlobalProperty(
+			    FormEntryConstants.FORMENTRY_GP_PREFILL_MAX_ENCOUNTERS);
+			try {
+				max = (value == null || value.trim().length() == 0) ? FormEntryConstants.FORMENTRY_GP_PREFILL_MAX_ENCOUNTERS_DEFAULT
+				        : Math.max(0, Integer.parseInt(value.trim()));
+			}
+			catch (NumberFormatException e) {
+				log.warn("Invalid value for " + FormEntryConstants.FORMENTRY_GP_PREFILL_MAX_ENCOUNTERS + ": " + value);
+				max = FormEntryConstants.FORMENTRY_GP_PREFILL_MAX_ENCOUNTERS_DEFAULT;
+			}
+			synchronized (lock) {
+				if (invalidations == invalidationsBefore)
+					prefillMaxEncounters = max;
+			}
+		}
+
+		return max;
+	}
+
+	/**
+	 * Gets the global properties made available to form templates as <code>$globalProperties</code>,
+	 * those whose name starts with the prefix in {@link FormEntryConstants#FORMENTRY_GP_PREFIX_LOOKUP}
+	 *
+	 * @return the property values by property name, the map can't be modified
+	 * @should cache the properties until one of them changes
+	 * @should not cache properties one of which changed while they were loading
+	 */
+	public static Map<String, String> getFormGlobalProperties() {
+		Map<String, String> properties = formGlobalProperties;
+		if (properties == null) {
+			int invalidationsBefore = getInvalidations();
+			String prefix = Context.getAdministrationService().getGlobalProperty(
+			    FormEntryConstants.FORMENTRY_GP_PREFIX_LOOKUP, "");
+
+			// the prefix is set before the properties are read, so that the listener already
+			// invalidates them if one of them is changed while they are being read
+			formGlobalPropertiesPrefix = prefix;
+
+			properties = new HashMap<String, String>();
+			for (GlobalProperty gp : Context.getAdministrationService().getGlobalPropertiesByPrefix(prefix))
+				properties.put(gp.getProperty(), gp.getPropertyValue());
+			properties = Collections.unmodifiableMap(properties);
+			synchronized (lock) {
+				if (invalidations == invalidationsBefore)
+					formGlobalProperties = properties;
+			}
+		}
+
+		return properties;
+	}
+
+	/**
+	 * Drops all the cached values so they are loaded again on next use
+	 */
+	public static void clear() {
+		synchronized (lock) {
+			invalidations++;
+			queueDir = null;
+			archiveDirPattern = null;
+			defaultHL7Source = null;
+			prefillMaxEncounters = null;
+			formGlobalProperties = null;
+		}
+	}
+
+	/**
+	 * @return the number of invalidations so far, read before loading a value
+	 */
+	private static int getInvalidations() {
+		synchronized (lock) {
+			return invalidations;
+		}
+	}
+
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#supportsPropertyName(java.lang.String)
+	 */
+	public boolean supportsPropertyName(String propertyName) {
+		return FormEntryConstants.FORMENTRY_GP_QUEUE_DIR.equals(propertyName)
+		        || FormEntryConstants.FORMENTRY_GP_QUEUE_ARCHIVE_DIR.equals(propertyName)
+		        || FormEntryConstants.FORMENTRY_GP_DEFAULT_HL7_SOURCE.equals(propertyName)
+		        || FormEntryConstants.FORMENTRY_GP_PREFILL_MAX_ENCOUNTERS.equals(propertyName)
+		        || isFormGlobalProperty(propertyName);
+	}
+
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyChanged(org.openmrs.GlobalProperty)
+	 */
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		globalPropertyDeleted(newValue.getProperty());
+	}
+
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyDeleted(java.lang.String)
+	 */
+	public void globalPropertyDeleted(String propertyName) {
+		synchronized (lock) {
+			invalidations++;
+			if (FormEntryConstants.FORMENTRY_GP_QUEUE_DIR.equals(propertyName))
+				queueDir = null;
+			else if (FormEntryConstants.FORMENTRY_GP_QUEUE_ARCHIVE_DIR.equals(propertyName))
+				archiveDirPattern = null;
+			else if (FormEntryConstants.FORMENTRY_GP_DEFAULT_HL7_SOURCE.equals(propertyName))
+				defaultHL7Source = null;
+			else if (FormEntryConstants.FORMENTRY_GP_PREFILL_MAX_ENCOUNTERS.equals(propertyName))
+				prefillMaxEncounters = null;
+
+			// the prefix lookup and maximum encounters properties may themselves match the prefix
+			if (isFormGlobalProperty(propertyName))
+				formGlobalProperties = null;
+		}
+	}
+
+	/**
+	 * @return true if the property is the prefix lookup or one of the global properties made
+	 *         available to form templates
+	 */
+	private static boolean isFormGlobalProperty(String propertyName) {
+		if (FormEntryConstants.FORMENTRY_GP_PREFIX_LOOKUP.equals(propertyName))
+			return true;
+
+		String prefix = formGlobalPropertiesPrefix;
+		return prefix != null && propertyName != null && propertyName.startsWith(prefix);
+	}
+}
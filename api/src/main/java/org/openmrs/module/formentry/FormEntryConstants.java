@@ -182,6 +182,10 @@ public class FormEntryConstants {
 	public static final String FORMENTRY_GP_QUEUE_ARCHIVE_DIR = "formentry.queue_archive_dir";
 	public static final String FORMENTRY_GP_QUEUE_ARCHIVE_DIR_DEFAULT = "formentry/archive/%Y/%M";
 	public static final String FORMENTRY_GP_XSN_ARCHIVE_DIR = "formentry.xsn_archive_dir";
+	public static final String FORMENTRY_GP_QUEUE_PROCESSOR_THREADS = "formentry.queue_processor_threads";
+	public static final String FORMENTRY_GP_QUEUE_BATCH_SIZE = "formentry.queue_batch_size";
+	public static final String FORMENTRY_QUEUE_PROCESSING_DIR_SUFFIX = "_processing";
+	public static final String FORMENTRY_QUEUE_SAVED_SUFFIX = ".saved";
 
     public static final String FORMENTRY_GP_DEFAULT_HL7_SOURCE = "formentry.default_hl7_source";
     public static final String FORMENTRY_DEFAULT_HL7_SOURCE_NAME = "local";
@@ -210,6 +214,9 @@ public class FormEntryConstants {
 	public static final String FORMENTRY_RP_LCAB_LOCATION = "formentry.lcab_location";
 
 	public static final String FORMENTRY_GP_PREFIX_LOOKUP = "formentry.gp_prefix_for_forms";
+	public static final String FORMENTRY_GP_PREFILL_MAX_ENCOUNTERS = "formentry.prefill_max_encounters";
+	// all encounters, templates that look for old encounters would silently prefill less with a limit
+	public static final int FORMENTRY_GP_PREFILL_MAX_ENCOUNTERS_DEFAULT = 0;
 	public static String FORMENTRY_CABEXTRACT_LOCATION = null; // value of the runtime property loaded at startup
 	public static String FORMENTRY_LCAB_LOCATION = null; // value of the runtime property loaded at startup
 	
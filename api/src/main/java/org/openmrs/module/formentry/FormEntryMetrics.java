@@ -0,0 +1,326 @@
+package org.openmrs.module.formentry;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and counts for the formentry queue pipeline, collected since the module was started. The
+ * queue processor records how long each {@link Stage} takes for every queue item along with the
+ * number of items that were processed, sent to the error bin and archived, and the
+ * {@link ProcessFormEntryQueueTask} records how long each of its runs took. <br/>
+ * <br/>
+ * All the recording methods are thread safe and cheap enough to be called for every queue item.
+ *
+ * @see FormEntryService#getFormEntryMetrics()
+ */
+public class FormEntryMetrics {
+
+	/**
+	 * The timed stages of processing a queue item
+	 */
+	public enum Stage {
+		/**
+		 * reading the form id and uid from the queue file
+		 */
+		HEADER_READ,
+		/**
+		 * compiling a form's xslt, only happens when it isn't cached
+		 */
+		XSLT_COMPILE,
+		/**
+		 * transforming the queue item into hl7
+		 */
+		TRANSFORM,
+		/**
+		 * saving the hl7 inbound queue item(s), once per batch when batching
+		 */
+		HL7_SAVE,
+		/**
+		 * moving the queue file into the archive
+		 */
+		ARCHIVE
+	}
+
+	private static final FormEntryMetrics instance = new FormEntryMetrics();
+
+	private final Map<Stage, Histogram> stages;
+
+	private final AtomicLong processed = new AtomicLong();
+
+	private final AtomicLong errored = new AtomicLong();
+
+	private final AtomicLong archived = new AtomicLong();
+
+	private final Date since = new Date();
+
+	private volatile Date lastRunStarted = null;
+
+	private volatile long lastRunMillis = 0;
+
+	private volatile long lastRunDrained = 0;
+
+	private long runStartNanos;
+
+	private long runStartDrained;
+
+	private FormEntryMetrics() {
+		Map<Stage, Histogram> histograms = new EnumMap<Stage, Histogram>(Stage.class);
+		for (Stage stage : Stage.values())
+			histograms.put(stage, new Histogram());
+		stages = Collections.unmodifiableMap(histograms);
+	}
+
+	/**
+	 * @return the metrics of this module
+	 */
+	public static FormEntryMetrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return the start time to pass to {@link #record(Stage, long)}
+	 */
+	public static long startTimer() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the time taken by a stage
+	 *
+	 * @param stage the stage that finished
+	 * @param startNanos the value {@link #startTimer()} returned when the stage started
+	 */
+	public static void record(Stage stage, long startNanos) {
+		instance.stages.get(stage).record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @param count the number of queue items transformed into hl7 and saved
+	 */
+	public static void itemsProcessed(int count) {
+		instance.processed.addAndGet(count);
+	}
+
+	/**
+	 * Records that a queue item was moved into the error bin
+	 */
+	public static void itemErrored() {
+		instance.errored.incrementAndGet();
+	}
+
+	/**
+	 * Records that a queue item was moved into the archive
+	 */
+	public static void itemArchived() {
+		instance.archived.incrementAndGet();
+	}
+
+	/**
+	 * Records the start of a queue processing task run
+	 */
+	public static synchronized void taskRunStarted() {
+		instance.lastRunStarted = new Date();
+		instance.runStartNanos = System.nanoTime();
+		instance.runStartDrained = instance.getDrainedCount();
+	}
+
+	/**
+	 * Records the end of the queue processing task run that was last started
+	 */
+	public static synchronized void taskRunFinished() {
+		instance.lastRunMillis = (System.nanoTime() - instance.runStartNanos) / 1000000;
+		instance.lastRunDrained = instance.getDrainedCount() - instance.runStartDrained;
+	}
+
+	/**
+	 * @return the latency histogram of each stage
+	 */
+	public Map<Stage, Histogram> getStages() {
+		return stages;
+	}
+
+	/**
+	 * @return the number of queue items transformed into hl7 and saved
+	 */
+	public long getProcessedCount() {
+		return processed.get();
+	}
+
+	/**
+	 * @return the number of queue items moved into the error bin
+	 */
+	public long getErroredCount() {
+		return errored.get();
+	}
+
+	/**
+	 * @return the number of queue items moved into the archive
+	 */
+	public long getArchivedCount() {
+		return archived.get();
+	}
+
+	/**
+	 * @return the number of queue items that have left the queue, either archived or errored
+	 */
+	public long getDrainedCount() {
+		return archived.get() + errored.get();
+	}
+
+	/**
+	 * @return when the metrics started being collected
+	 */
+	public Date getSince() {
+		return since;
+	}
+
+	/**
+	 * @return when the last queue processing task run started, null if it hasn't run yet
+	 */
+	public Date getLastRunStarted() {
+		return lastRunStarted;
+	}
+
+	/**
+	 * @return how long the last finished queue processing task run took
+	 */
+	public long getLastRunMillis() {
+		return lastRunMillis;
+	}
+
+	/**
+	 * @return the number of queue items drained by the last finished queue processing task run
+	 */
+	public long getLastRunDrained() {
+		return lastRunDrained;
+	}
+
+	/**
+	 * @return the number of queue items drained per second by the last finished task run
+	 */
+	public double getDrainRate() {
+		if (lastRunMillis <= 0)
+			return 0;
+
+		return lastRunDrained * 1000.0 / lastRunMillis;
+	}
+
+	/**
+	 * A latency histogram with fixed buckets, from 1ms up to over 30s
+	 */
+	public static class Histogram {
+
+		private static final long[] BUCKET_BOUNDS_MILLIS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000,
+		        10000, 30000 };
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		void record(long nanos) {
+			int bucket = 0;
+			while (bucket < BUCKET_BOUNDS_MILLIS.length && nanos > BUCKET_BOUNDS_MILLIS[bucket] * 1000000)
+				bucket++;
+
+			buckets.incrementAndGet(bucket);
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+
+			long max;
+			while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+				// another thread changed the max, try again
+			}
+		}
+
+		/**
+		 * @return the number of recorded timings
+		 */
+		public long getCount() {
+			return count.get();
+		}
+
+		/**
+		 * @return the mean of the recorded timings in milliseconds
+		 */
+		public double getMeanMillis() {
+			long n = count.get();
+			return (n == 0) ? 0 : totalNanos.get() / 1000000.0 / n;
+		}
+
+		/**
+		 * @return the longest recorded timing in milliseconds
+		 */
+		public double getMaxMillis() {
+			return maxNanos.get() / 1000000.0;
+		}
+
+		/**
+		 * @return the 50th percentile of the recorded timings in milliseconds
+		 */
+		public long getP50Millis() {
+			return getPercentileMillis(0.50);
+		}
+
+		/**
+		 * @return the 95th percentile of the recorded timings in milliseconds
+		 */
+		public long getP95Millis() {
+			return getPercentileMillis(0.95);
+		}
+
+		/**
+		 * @return the 99th percentile of the recorded timings in milliseconds
+		 */
+		public long getP99Millis() {
+			return getPercentileMillis(0.99);
+		}
+
+		/**
+		 * Gets the upper bound of the bucket holding the given percentile of the recorded timings
+		 *
+		 * @param percentile between 0 and 1
+		 * @return the percentile in milliseconds, the longest timing if it is beyond the last bucket
+		 */
+		public long getPercentileMillis(double percentile) {
+			long n = count.get();
+			if (n == 0)
+				return 0;
+
+			long rank = (long) Math.ceil(percentile * n), seen = 0;
+			for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank)
+					return BUCKET_BOUNDS_MILLIS[i];
+			}
+
+			return (long) Math.ceil(getMaxMillis());
+		}
+
+		/**
+		 * @return the number of timings in each bucket, the last bucket holding those over the
+		 *         highest bound
+		 * @see #getBucketBoundsMillis()
+		 */
+		public long[] getBucketCounts() {
+			long[] counts = new long[buckets.length()];
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = buckets.get(i);
+			return counts;
+		}
+
+		/**
+		 * @return the upper bound of each bucket in milliseconds
+		 */
+		public static long[] getBucketBoundsMillis() {
+			return BUCKET_BOUNDS_MILLIS.clone();
+		}
+	}
+}
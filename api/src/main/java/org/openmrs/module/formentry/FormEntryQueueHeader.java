@@ -0,0 +1,122 @@
+package org.openmrs.module.formentry;
+
+import java.io.InputStream;
+import java.io.Reader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The values from the formentry xml that are needed before the xml can be transformed: the id of
+ * the form used to create it (<code>/form/@id</code>) and the uid from its header (
+ * <code>/form/header/uid</code>). <br/>
+ * <br/>
+ * The values are read with a streaming parser that stops as soon as the uid has been read, so the
+ * rest of the (possibly large) document is never parsed or held in memory.
+ */
+public class FormEntryQueueHeader {
+
+	private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+	private String formId;
+
+	private String uid;
+
+	/**
+	 * Reads the header values from the given formentry xml
+	 *
+	 * @param reader the formentry xml
+	 * @return the header values
+	 * @throws XMLStreamException if the xml can't be parsed
+	 * @should read the form id and uid
+	 * @should return empty values if the form element or uid are missing
+	 * @should stop reading after the uid
+	 */
+	public static FormEntryQueueHeader read(Reader reader) throws XMLStreamException {
+		return read(xmlInputFactory.createXMLStreamReader(reader));
+	}
+
+	/**
+	 * Reads the header values from the given formentry xml, the encoding is detected from the xml
+	 * declaration
+	 *
+	 * @param inputStream the formentry xml
+	 * @return the header values
+	 * @throws XMLStreamException if the xml can't be parsed
+	 */
+	public static FormEntryQueueHeader read(InputStream inputStream) throws XMLStreamException {
+		return read(xmlInputFactory.createXMLStreamReader(inputStream));
+	}
+
+	private static FormEntryQueueHeader read(XMLStreamReader xml) throws XMLStreamException {
+		FormEntryQueueHeader header = new FormEntryQueueHeader();
+
+		try {
+			// depth of the current element, the root element being 1
+			int depth = 0;
+			boolean inForm = false, inHeader = false, inUid = false;
+			StringBuilder uid = new StringBuilder();
+
+			while (xml.hasNext()) {
+				int event = xml.next();
+
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					depth++;
+					if (depth == 1) {
+						if (!isElement(xml, "form"))
+							break;
+						inForm = true;
+						header.formId = xml.getAttributeValue(null, "id");
+					} else if (depth == 2 && inForm && isElement(xml, "header")) {
+						inHeader = true;
+					} else if (depth == 3 && inHeader && isElement(xml, "uid")) {
+						inUid = true;
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					if (inUid && depth == 3) {
+						// the first uid is the only one the transform cares about
+						header.uid = uid.toString();
+						break;
+					} else if (inHeader && depth == 2) {
+						// there is no uid in the header
+						break;
+					}
+					depth--;
+				} else if (inUid
+				        && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE)) {
+					uid.append(xml.getText());
+				}
+			}
+		}
+		finally {
+			xml.close();
+		}
+
+		return header;
+	}
+
+	/**
+	 * Matches element names the way the xpath expressions used to on the formentry xml, i.e. on
+	 * the element's name as written, without a prefix
+	 */
+	private static boolean isElement(XMLStreamReader xml, String name) {
+		String prefix = xml.getPrefix();
+		return (prefix == null || prefix.length() == 0) && name.equals(xml.getLocalName());
+	}
+
+	/**
+	 * @return the value of the form element's id attribute or an empty string if there isn't one
+	 */
+	public String getFormId() {
+		return (formId == null) ? "" : formId;
+	}
+
+	/**
+	 * @return the text of the header's uid or an empty string if there isn't one
+	 */
+	public String getUid() {
+		return (uid == null) ? "" : uid;
+	}
+}
@@ -0,0 +1,178 @@
+package org.openmrs.module.formentry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * In memory index of the files in the formentry queue directory, ordered oldest first. The index
+ * is seeded with a single scan of the directory and kept current by the service methods that add
+ * files to or remove files from the queue, so that getting the next queue item or the size of the
+ * queue doesn't require listing the whole directory. <br/>
+ * <br/>
+ * The directory is only scanned again when the index runs empty or has been invalidated, so files
+ * put into the directory by anything else (e.g. copied into it by hand) are picked up once the
+ * indexed files have been processed. A file added through the service while the directory is being
+ * scanned is indexed only once, whether or not the scan already found it.
+ */
+public class FormEntryQueueIndex {
+
+	private static Log log = LogFactory.getLog(FormEntryQueueIndex.class);
+
+	private static final LinkedHashSet<String> fileNames = new LinkedHashSet<String>();
+
+	private static File indexedDir = null;
+
+	/**
+	 * Gets the name of the oldest file in the queue directory without removing it from the index
+	 *
+	 * @param queueDir the queue directory
+	 * @return the file name or null if the queue is empty
+	 */
+	public static synchronized String peek(File queueDir) {
+		refresh(queueDir);
+
+		Iterator<String> iterator = fileNames.iterator();
+		return iterator.hasNext() ? iterator.next() : null;
+	}
+
+	/**
+	 * Gets the name of the oldest file in the queue directory and removes it from the index. The
+	 * caller is expected to move the file out of the queue directory and then call
+	 * {@link #removed(File, String)}
+	 *
+	 * @param queueDir the queue directory
+	 * @return the file name or null if the queue is empty
+	 * @should return the oldest file and remove it from the index
+	 * @should scan the directory again once the index is empty
+	 * @should scan the directory again after the index is invalidated
+	 */
+	public static synchronized String poll(File queueDir) {
+		refresh(queueDir);
+
+		Iterator<String> iterator = fileNames.iterator();
+		if (!iterator.hasNext())
+			return null;
+
+		String fileName = iterator.next();
+		iterator.remove();
+		return fileName;
+	}
+
+	/**
+	 * Gets the number of files in the queue directory
+	 *
+	 * @param queueDir the queue directory
+	 * @return the number of queue items
+	 */
+	public static synchronized int size(File queueDir) {
+		refresh(queueDir);
+
+		return fileNames.size();
+	}
+
+	/**
+	 * Records that a file was written to the queue directory
+	 *
+	 * @param queueDir the queue directory
+	 * @param fileName the name of the new file
+	 * @should add the file to the index without scanning the directory
+	 * @should index a file found by a scan only once
+	 * @should not lose files added while the directory is scanned
+	 */
+	public static synchronized void added(File queueDir, String fileName) {
+		fileNames.add(fileName);
+	}
+
+	/**
+	 * Records that a file was deleted from or moved out of the queue directory
+	 *
+	 * @param queueDir the queue directory
+	 * @param fileName the name of the removed file
+	 * @should remove the file from the index
+	 */
+	public static synchronized void removed(File queueDir, String fileName) {
+		fileNames.remove(fileName);
+	}
+
+	/**
+	 * Removes a file name that no longer exists in the queue directory from the index
+	 *
+	 * @param fileName the name of the missing file
+	 */
+	public static synchronized void discard(String fileName) {
+		fileNames.remove(fileName);
+	}
+
+	/**
+	 * Clears the index so that the queue directory is scanned again on the next lookup
+	 */
+	public static synchronized void invalidate() {
+		fileNames.clear();
+		indexedDir = null;
+	}
+
+	/**
+	 * Rescans the queue directory if the index is empty, was invalidated or is of another directory
+	 *
+	 * @param queueDir the queue directory
+	 */
+	private static void refresh(File queueDir) {
+		if (!fileNames.isEmpty() && queueDir.equals(indexedDir))
+			return;
+
+		File[] files = queueDir.listFiles();
+
+		fileNames.clear();
+		indexedDir = queueDir;
+
+		if (files == null) {
+			log.warn("Unable to open queue directory: " + queueDir);
+			return;
+		}
+
+		// read each file's modification time once rather than on every comparison
+		List<QueueFile> queueFiles = new ArrayList<QueueFile>(files.length);
+		for (File file : files) {
+			if (file.isFile())
+				queueFiles.add(new QueueFile(file.getName(), file.lastModified()));
+		}
+
+		Collections.sort(queueFiles);
+
+		for (QueueFile queueFile : queueFiles)
+			fileNames.add(queueFile.name);
+
+		if (log.isDebugEnabled())
+			log.debug("Indexed " + fileNames.size() + " files in queue directory: " + queueDir);
+	}
+
+	/**
+	 * A queue file name with its modification time, sorted oldest first. The file names break ties
+	 * between files written in the same instant
+	 */
+	private static class QueueFile implements Comparable<QueueFile> {
+
+		private String name;
+
+		private long modified;
+
+		public QueueFile(String name, long modified) {
+			this.name = name;
+			this.modified = modified;
+		}
+
+		public int compareTo(QueueFile other) {
+			if (modified != other.modified)
+				return (modified < other.modified) ? -1 : 1;
+
+			return name.compareTo(other.name);
+		}
+	}
+}
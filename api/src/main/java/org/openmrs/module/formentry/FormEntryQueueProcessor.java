@@ -1,33 +1,41 @@
 package org.openmrs.module.formentry;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathFactory;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Form;
 import org.openmrs.api.APIException;
 import org.openmrs.api.FormService;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
 import org.openmrs.hl7.HL7InQueue;
 import org.openmrs.hl7.HL7Source;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.formentry.FormEntryMetrics.Stage;
 import org.springframework.transaction.annotation.Transactional;
-import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
 
 /**
  * Processes FormEntryQueue entries. Each entry is translated into an HL7
@@ -45,8 +53,6 @@ public class FormEntryQueueProcessor /* implements Runnable */{
 	private static final Log log = LogFactory
 			.getLog(FormEntryQueueProcessor.class);
 
-	private DocumentBuilderFactory documentBuilderFactory;
-	private XPathFactory xPathFactory;
 	private TransformerFactory transformerFactory;
 	private static Boolean isRunning = false; // allow only one running
 
@@ -73,69 +79,227 @@ public class FormEntryQueueProcessor /* implements Runnable */{
 	 *            entry to be transformed
 	 */
 	public void transformFormEntryQueue(FormEntryQueue formEntryQueue) {
+		HL7InQueue hl7InQueue = transformToHL7InQueue(formEntryQueue);
+		if (hl7InQueue == null)
+			return;
+
+		// At this point, we have successfully transformed the XML data into
+		// HL7. Create a new entry in the HL7 inbound queue and move the
+		// current FormEntry queue item into the archive.
+		long start = FormEntryMetrics.startTimer();
+		Context.getHL7Service().saveHL7InQueue(hl7InQueue);
+		FormEntryMetrics.record(Stage.HL7_SAVE, start);
+		FormEntryMetrics.itemsProcessed(1);
+
+		FormEntryService formEntryService = (FormEntryService)Context.getService(FormEntryService.class);
+		archive(formEntryService, formEntryQueue);
+
+		// clean up memory
+		formEntryService.garbageCollect();
+	}
+
+	/**
+	 * Transforms a batch of FormEntryQueue entries. The HL7 inbound queue
+	 * entries of all the successfully transformed entries are saved in a
+	 * single transaction, after which the entries are marked as saved and
+	 * archived, and the session is cleared once for the whole batch. Entries
+	 * that fail to transform are moved into the error bin as they are
+	 * encountered. If the batch can't be saved its entries are saved one at
+	 * a time, so only the entries whose HL7 can't be saved are moved into the
+	 * error bin. An entry that is saved but can't be archived stays marked
+	 * and is archived when the claimed entries are next released.
+	 * 
+	 * @param formEntryQueues
+	 *            entries to be transformed
+	 * @return the entries whose HL7 was saved
+	 * @see FormEntryService#markFormEntryQueueSaved(FormEntryQueue)
+	 */
+	public List<FormEntryQueue> transformFormEntryQueues(List<FormEntryQueue> formEntryQueues) {
+		List<FormEntryQueue> transformed = new ArrayList<FormEntryQueue>();
+		List<HL7InQueue> hl7InQueues = new ArrayList<HL7InQueue>();
+		for (FormEntryQueue formEntryQueue : formEntryQueues) {
+			try {
+				HL7InQueue hl7InQueue = transformToHL7InQueue(formEntryQueue);
+				if (hl7InQueue != null) {
+					transformed.add(formEntryQueue);
+					hl7InQueues.add(hl7InQueue);
+				}
+			}
+			catch (Exception e) {
+				// the rest of the batch can still go through, this entry would fail again on every
+				// run so it is moved into the error bin
+				log.error("Error while processing FormEntry queue item: " + formEntryQueue.getFileSystemUrl(), e);
+				try {
+					setFatalError(formEntryQueue, "Error while processing the formentry queue item", e.getMessage());
+				}
+				catch (Exception e2) {
+					log.error("Unable to move FormEntry queue item into the error bin: "
+					        + formEntryQueue.getFileSystemUrl(), e2);
+				}
+			}
+		}
+
+		FormEntryService formEntryService = (FormEntryService)Context.getService(FormEntryService.class);
+		List<FormEntryQueue> saved = new ArrayList<FormEntryQueue>();
+		if (!hl7InQueues.isEmpty()) {
+			// nothing is archived unless its hl7 was saved
+			saved = saveHL7InQueues(formEntryService, transformed, hl7InQueues);
+
+			// mark them all before archiving any, the renames are quick and a marked entry is 
+			// never transformed again
+			for (FormEntryQueue formEntryQueue : saved)
+				formEntryService.markFormEntryQueueSaved(formEntryQueue);
+
+			for (FormEntryQueue formEntryQueue : saved) {
+				try {
+					archive(formEntryService, formEntryQueue);
+				}
+				catch (Exception e) {
+					log.error("Unable to archive FormEntry queue item, it is archived on the next run: "
+					        + formEntryQueue.getFileSystemUrl(), e);
+				}
+			}
+		}
+
+		// clean up memory
+		formEntryService.garbageCollect();
+
+		return saved;
+	}
+
+	/**
+	 * Saves the HL7 inbound queue entries of a batch in one transaction. If
+	 * that fails, e.g. because one of the entries can't be stored, the
+	 * session is cleared and the entries are saved one at a time. The queue
+	 * entries whose HL7 still can't be saved are moved into the error bin.
+	 * 
+	 * @param formEntryService
+	 *            the service to save with
+	 * @param formEntryQueues
+	 *            the transformed queue entries
+	 * @param hl7InQueues
+	 *            the HL7 of each of the queue entries, in the same order
+	 * @return the queue entries whose HL7 was saved
+	 */
+	private List<FormEntryQueue> saveHL7InQueues(FormEntryService formEntryService,
+			List<FormEntryQueue> formEntryQueues, List<HL7InQueue> hl7InQueues) {
+		long start = FormEntryMetrics.startTimer();
+		try {
+			formEntryService.saveHL7InQueues(hl7InQueues);
+			FormEntryMetrics.record(Stage.HL7_SAVE, start);
+			FormEntryMetrics.itemsProcessed(hl7InQueues.size());
+			return formEntryQueues;
+		}
+		catch (Exception e) {
+			log.warn("Unable to save the HL7 of a batch of " + hl7InQueues.size()
+					+ " FormEntry queue items, saving them one at a time", e);
+			// the failed flush leaves the session unusable
+			formEntryService.garbageCollect();
+		}
+
+		List<FormEntryQueue> saved = new ArrayList<FormEntryQueue>();
+		for (int i = 0; i < formEntryQueues.size(); i++) {
+			FormEntryQueue formEntryQueue = formEntryQueues.get(i);
+			HL7InQueue hl7InQueue = hl7InQueues.get(i);
+			// the id assigned by the rolled back insert doesn't exist
+			hl7InQueue.setHL7InQueueId(null);
+			start = FormEntryMetrics.startTimer();
+			try {
+				formEntryService.saveHL7InQueues(Collections.singletonList(hl7InQueue));
+				FormEntryMetrics.record(Stage.HL7_SAVE, start);
+				FormEntryMetrics.itemsProcessed(1);
+				saved.add(formEntryQueue);
+			}
+			catch (Exception e) {
+				log.error("Unable to save the HL7 of FormEntry queue item: " + formEntryQueue.getFileSystemUrl(), e);
+				try {
+					formEntryService.garbageCollect();
+					setFatalError(formEntryQueue, "Unable to save the HL7 of the formentry queue item", e.getMessage());
+				}
+				catch (Exception e2) {
+					log.error("Unable to move FormEntry queue item into the error bin: "
+							+ formEntryQueue.getFileSystemUrl(), e2);
+				}
+			}
+		}
+		return saved;
+	}
+
+	/**
+	 * Transforms a FormEntryQueue entry into an HL7 inbound queue entry that
+	 * has not been saved yet. If the entry can't be transformed it is moved
+	 * into the error bin.
+	 * 
+	 * @param formEntryQueue
+	 *            entry to be transformed
+	 * @return the HL7 inbound queue entry or null if the transform failed
+	 */
+	private HL7InQueue transformToHL7InQueue(FormEntryQueue formEntryQueue) {
 		log.debug("Transforming form entry queue");
-		String formData = formEntryQueue.getFormData();
+		// the queue file is read straight from disk, the data is only loaded into memory 
+		// if it has no file or when it has to be copied into the error bin
+		File formDataFile = getFormDataFile(formEntryQueue);
 		FormService formService = Context.getFormService();
 		Integer formId = null;
         HL7Source hl7Source = null;
 		String hl7SourceKey = null;
 		String errorDetails = null;
 
-		// First we parse the FormEntry xml data to obtain the formId of the
-		// form that was used to create the xml data
+		// First we read the header of the FormEntry xml data to obtain the formId 
+		// of the form that was used to create the xml data
 		try {
-			DocumentBuilderFactory dbf = getDocumentBuilderFactory();
-			DocumentBuilder db = dbf.newDocumentBuilder();
-			XPathFactory xpf = getXPathFactory();
-			XPath xp = xpf.newXPath();
-			Document doc = db.parse(new InputSource(new StringReader(formData)));
-			formId = Integer.parseInt(xp.evaluate("/form/@id", doc));
-			hl7SourceKey = xp.evaluate("/form/header/uid", doc);
+			long start = FormEntryMetrics.startTimer();
+			FormEntryQueueHeader header = readHeader(formEntryQueue, formDataFile);
+			FormEntryMetrics.record(Stage.HEADER_READ, start);
+			formId = Integer.parseInt(header.getFormId());
+			hl7SourceKey = header.getUid();
 		} catch (Exception e) {
 			errorDetails = e.getMessage();
 			log.error("Error while parsing formentry ("+ formEntryQueue.getFormEntryQueueId() + ")", e);
 			setFatalError(formEntryQueue, "Error while parsing the formentry xml", errorDetails);
+			return null;
 		}
 
 		// If we failed to obtain the formId, move the queue entry into the
 		// error bin and abort
 		if (formId == null) {
 			setFatalError(formEntryQueue, "Error retrieving form ID from data", errorDetails);
-			return;
+			return null;
 		}
 		
 		// If we can't get a form object for this formId, throw this to the error bin
 		Form form = formService.getForm(formId);
 		if (form == null) {
 			setFatalError(formEntryQueue, "The form id: " + formId + " does not exist in the form table!", errorDetails);
-			return;
+			return null;
 		}
 
-        // Get the HL7 source based on the form's encounter type
-        hl7Source = Context.getHL7Service().getHL7SourceByName(
-                Context.getAdministrationService().getGlobalProperty(
-                    FormEntryConstants.FORMENTRY_GP_DEFAULT_HL7_SOURCE,
-                    FormEntryConstants.FORMENTRY_DEFAULT_HL7_SOURCE_NAME));
+        // Get the HL7 source (cached until its global property changes)
+        hl7Source = FormEntryConfiguration.getDefaultHL7Source();
 
 		// If source key not provided, use FormEntryQueue.formEntryQueueId
 		if (hl7SourceKey == null || hl7SourceKey.length() < 1)
 			hl7SourceKey = String.valueOf(formEntryQueue.getFormEntryQueueId());
 
-		// Now that we've determined the form used to create the XML data,
-		// we can obtain the associated XSLT to perform the transform to HL7.
-		String xsltDoc = FormEntryUtil.getFormXslt(form);
-
 		StringWriter outWriter = new StringWriter();
-		Source source = new StreamSource(new StringReader(formData), "UTF-8");
-		Source xslt = new StreamSource(IOUtils.toInputStream(xsltDoc));
+		Source source;
+		if (formDataFile != null)
+			source = new StreamSource(formDataFile);
+		else
+			source = new StreamSource(new StringReader(formEntryQueue.getFormData()));
 		Result result = new StreamResult(outWriter);
 
-		TransformerFactory tf = getTransformerFactory();
 		String out = null;
 		errorDetails = null;
 		try {
-			Transformer t = tf.newTransformer(xslt);
+			// Now that we've determined the form used to create the XML data,
+			// we can obtain the associated XSLT to perform the transform to HL7.
+			// The compiled XSLT is cached and shared between submissions of the form
+			Templates xslt = FormEntryXsltCache.getTemplates(form, getTransformerFactory());
+			long start = FormEntryMetrics.startTimer();
+			Transformer t = xslt.newTransformer();
 			t.transform(source, result);
+			FormEntryMetrics.record(Stage.TRANSFORM, start);
 			out = outWriter.toString();
 		} catch (TransformerConfigurationException e) {
 			errorDetails = e.getMessage();
@@ -149,25 +313,14 @@ public class FormEntryQueueProcessor /* implements Runnable */{
 		// and exit
 		if (out == null) {
 			setFatalError(formEntryQueue, "Unable to transform to HL7", errorDetails);
-			return;
+			return null;
 		}
 
-		// At this point, we have successfully transformed the XML data into
-		// HL7. Create a new entry in the HL7 inbound queue and move the
-		// current FormEntry queue item into the archive.
 		HL7InQueue hl7InQueue = new HL7InQueue();
-		hl7InQueue.setHL7Data(out.toString());
+		hl7InQueue.setHL7Data(out);
 		hl7InQueue.setHL7Source(hl7Source);
 		hl7InQueue.setHL7SourceKey(hl7SourceKey);
-		Context.getHL7Service().saveHL7InQueue(hl7InQueue);
-
-		FormEntryArchive formEntryArchive = new FormEntryArchive(formEntryQueue);
-        FormEntryService formEntryService = (FormEntryService)Context.getService(FormEntryService.class);
-		formEntryService.createFormEntryArchive(formEntryArchive);
-		formEntryService.deleteFormEntryQueue(formEntryQueue);
-
-		// clean up memory
-		formEntryService.garbageCollect();
+		return hl7InQueue;
 	}
 
 	/**
@@ -195,32 +348,58 @@ public class FormEntryQueueProcessor /* implements Runnable */{
 	}
 
 	/**
-	 * @return DocumentBuilderFactory to be used for parsing XML
+	 * Moves a transformed queue item into the archive
+	 * 
+	 * @param formEntryService the service to archive with
+	 * @param formEntryQueue the queue item whose hl7 has been saved
 	 */
-	private DocumentBuilderFactory getDocumentBuilderFactory() {
-		if (documentBuilderFactory == null)
-			documentBuilderFactory = DocumentBuilderFactory.newInstance();
-		return documentBuilderFactory;
+	private void archive(FormEntryService formEntryService, FormEntryQueue formEntryQueue) {
+		long start = FormEntryMetrics.startTimer();
+		formEntryService.archiveFormEntryQueue(formEntryQueue);
+		FormEntryMetrics.record(Stage.ARCHIVE, start);
+		FormEntryMetrics.itemArchived();
 	}
 
 	/**
-	 * @return XPathFactory to be used for obtaining data from the parsed XML
+	 * @param formEntryQueue the queue item
+	 * @return the file holding the queue item's data or null if it doesn't have one
 	 */
-	private XPathFactory getXPathFactory() {
-		if (xPathFactory == null)
-			xPathFactory = XPathFactory.newInstance();
-		return xPathFactory;
+	private File getFormDataFile(FormEntryQueue formEntryQueue) {
+		if (formEntryQueue.getFileSystemUrl() == null)
+			return null;
+		
+		File file = new File(formEntryQueue.getFileSystemUrl());
+		return file.isFile() ? file : null;
+	}
+
+	/**
+	 * Reads the header of the queue item's data from its file if it has one, otherwise from its
+	 * data in memory
+	 * 
+	 * @param formEntryQueue the queue item
+	 * @param formDataFile the file holding the queue item's data, may be null
+	 * @return the header values
+	 */
+	private FormEntryQueueHeader readHeader(FormEntryQueue formEntryQueue, File formDataFile) throws IOException,
+	        XMLStreamException {
+		if (formDataFile == null)
+			return FormEntryQueueHeader.read(new StringReader(formEntryQueue.getFormData()));
+		
+		InputStream in = new FileInputStream(formDataFile);
+		try {
+			return FormEntryQueueHeader.read(in);
+		}
+		finally {
+			in.close();
+		}
 	}
 
 	/**
 	 * @return TransformerFactory used to perform the transform to HL7
 	 */
 	private TransformerFactory getTransformerFactory() {
-		if (transformerFactory == null) {
-			System.setProperty("javax.xml.transform.TransformerFactory",
-				"net.sf.saxon.TransformerFactoryImpl");
-			transformerFactory = TransformerFactory.newInstance();
-		}
+		if (transformerFactory == null)
+			transformerFactory = FormEntryXsltCache.newTransformerFactory();
 		return transformerFactory;
 	}
 
@@ -244,11 +423,18 @@ public class FormEntryQueueProcessor /* implements Runnable */{
 		formEntryError.setErrorDetails(errorDetails);
 		FormEntryService formEntryService = (FormEntryService)Context.getService(FormEntryService.class);
 		formEntryService.createFormEntryError(formEntryError);
+		FormEntryMetrics.itemErrored();
 		formEntryService.deleteFormEntryQueue(formEntryQueue);
 	}
 
 	/**
-	 * Starts up a thread to process all existing FormEntryQueue entries
+	 * Starts up a thread to process all existing FormEntryQueue entries. If the
+	 * {@link FormEntryConstants#FORMENTRY_GP_QUEUE_PROCESSOR_THREADS} global property is greater
+	 * than one, the queue is drained by that many workers in parallel. If the
+	 * {@link FormEntryConstants#FORMENTRY_GP_QUEUE_BATCH_SIZE} global property is greater than one,
+	 * each worker saves and archives that many items at a time
+	 * 
+	 * @should process the queue with a single worker in the current thread if there is no daemon token
 	 */
 	public void processFormEntryQueue() throws APIException {
 		synchronized (isRunning) {
@@ -261,8 +447,14 @@ public class FormEntryQueueProcessor /* implements Runnable */{
 		try {
 			log.debug("Start processing FormEntry queue");
 			log.debug("FormEntry processor hash: " + this.hashCode());
-			while (transformNextFormEntryQueue()) {
-				// loop until queue is empty
+			int workerCount = getGlobalPropertyValue(FormEntryConstants.FORMENTRY_GP_QUEUE_PROCESSOR_THREADS);
+			int batchSize = getGlobalPropertyValue(FormEntryConstants.FORMENTRY_GP_QUEUE_BATCH_SIZE);
+			if (workerCount > 1 || batchSize > 1) {
+				processFormEntryQueueWithWorkers(workerCount, batchSize);
+			} else {
+				while (transformNextFormEntryQueue()) {
+					// loop until queue is empty
+				}
 			}
 			log.debug("Done processing FormEntry queue");
 		}
@@ -270,6 +462,130 @@ public class FormEntryQueueProcessor /* implements Runnable */{
 			isRunning = false;
 		}
 	}
+	
+	/**
+	 * Drains the queue with the given number of workers. Each worker atomically claims up to
+	 * batchSize queue files at a time into its own processing directory, so no file is transformed
+	 * twice. The workers run in daemon threads, each with its own session and user context. If the
+	 * module has no daemon token the queue is drained by a single worker in the current thread.
+	 * 
+	 * @param workerCount number of workers to run
+	 * @param batchSize number of queue items each worker transforms per transaction
+	 * @see #transformFormEntryQueues(List)
+	 */
+	private void processFormEntryQueueWithWorkers(int workerCount, int batchSize) {
+		FormEntryService formEntryService = (FormEntryService) Context.getService(FormEntryService.class);
+		
+		// put back anything left over from a previous run that didn't finish
+		formEntryService.releaseClaimedFormEntryQueues();
+		
+		DaemonToken daemonToken = FormEntryActivator.getDaemonToken();
+		if (daemonToken == null) {
+			log.warn("No daemon token for the formentry module, processing the FormEntry queue in a single worker");
+			workerCount = 1;
+		}
+		
+		List<FutureTask<Integer>> results = new ArrayList<FutureTask<Integer>>();
+		for (int i = 1; i <= workerCount; i++) {
+			FutureTask<Integer> worker = new FutureTask<Integer>(new QueueWorker("worker-" + i, batchSize));
+			results.add(worker);
+			if (daemonToken == null)
+				worker.run();
+			else
+				Daemon.runInDaemonThread(worker, daemonToken);
+		}
+		
+		int processed = 0;
+		try {
+			for (FutureTask<Integer> result : results) {
+				try {
+					processed += result.get();
+				}
+				catch (ExecutionException e) {
+					log.error("FormEntry queue worker failed", e.getCause());
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			log.warn("Interrupted while waiting for the FormEntry queue workers to finish");
+			for (FutureTask<Integer> result : results)
+				result.cancel(true);
+			Thread.currentThread().interrupt();
+		}
+		
+		if (log.isDebugEnabled())
+			log.debug(workerCount + " workers processed " + processed + " FormEntry queue items");
+	}
+	
+	/**
+	 * @param globalProperty the name of a global property holding a positive number
+	 * @return the value of the global property, 1 if it isn't set to a positive number
+	 */
+	private int getGlobalPropertyValue(String globalProperty) {
+		String value = Context.getAdministrationService().getGlobalProperty(globalProperty, "1");
+		try {
+			return Math.max(1, Integer.parseInt(value.trim()));
+		}
+		catch (NumberFormatException e) {
+			log.warn("Invalid value for global property " + globalProperty + ": '" + value + "'. Using 1 instead");
+			return 1;
+		}
+	}
+	
+	/**
+	 * A single queue processing worker. Every worker has its own processor (the xml factories held
+	 * by a processor are not thread safe) and runs in a thread whose session is already open
+	 */
+	private static class QueueWorker implements Callable<Integer> {
+		
+		private String workerName;
+		
+		private int batchSize;
+		
+		public QueueWorker(String workerName, int batchSize) {
+			this.workerName = workerName;
+			this.batchSize = batchSize;
+		}
+		
+		/**
+		 * @return the number of queue items whose HL7 this worker saved
+		 */
+		public Integer call() throws Exception {
+			int processed = 0;
+			FormEntryService formEntryService = (FormEntryService) Context.getService(FormEntryService.class);
+			FormEntryQueueProcessor processor = new FormEntryQueueProcessor();
+			List<FormEntryQueue> batch = new ArrayList<FormEntryQueue>(batchSize);
+			while (true) {
+				batch.clear();
+				FormEntryQueue formEntryQueue;
+				while (batch.size() < batchSize
+				        && (formEntryQueue = formEntryService.claimNextFormEntryQueue(workerName)) != null)
+					batch.add(formEntryQueue);
+				
+				if (batch.isEmpty())
+					break;
+				
+				try {
+					processed += processor.transformFormEntryQueues(batch).size();
+				}
+				catch (Exception e) {
+					// items that weren't saved stay in the processing dir and are put back into the 
+					// queue on the next run, saved ones are marked and archived instead
+					log.error("Error while processing a batch of " + batch.size() + " FormEntry queue items", e);
+					try {
+						// the session may hold the state of a failed flush, which would fail every 
+						// later batch
+						formEntryService.garbageCollect();
+					}
+					catch (Exception e2) {
+						log.error("Unable to clear the session, stopping FormEntry queue " + workerName, e2);
+						break;
+					}
+				}
+			}
+			return processed;
+		}
+	}
 
 	/*
 	 * Run method for processing all entries in the FormEntry queue public void
@@ -0,0 +1,187 @@
+package org.openmrs.module.formentry;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.Form;
+import org.openmrs.api.context.Context;
+
+/**
+ * Holds the schemas generated by {@link FormSchemaBuilder} so that a form's schema is only
+ * generated once instead of on every download, xsn compile and {@link FormEntryService#getSchema(Form)}
+ * call. Entries are stored against the form id and the locale the schema was generated in, so
+ * users of different locales don't replace each other's schema. Each entry keeps the form build
+ * (part of the schema namespace) and the date the form was changed, a schema of an older version
+ * of the form is therefore never served from the cache. The cache holds at most {@link #MAX_SIZE}
+ * schemas, the least recently used one is dropped first. <br/>
+ * <br/>
+ * Changes to the fields of a form and to the concepts it uses don't change the form itself, those
+ * are evicted by {@link org.openmrs.module.formentry.advice.InvalidateSchemaCacheAdvice}.
+ */
+public class FormEntrySchemaCache {
+
+	private static Log log = LogFactory.getLog(FormEntrySchemaCache.class);
+
+	/**
+	 * The maximum number of schemas kept in memory
+	 */
+	public static final int MAX_SIZE = 50;
+
+	/**
+	 * Schemas by form id and locale, see {@link #getKey(Integer, Locale)}
+	 */
+	private static final Map<String, CachedSchema> cache = new LinkedHashMap<String, CachedSchema>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedSchema> eldest) {
+			return size() > MAX_SIZE;
+		}
+	};
+
+	/**
+	 * Incremented on every invalidation, a schema that was being generated while entries were
+	 * invalidated may be stale and is not cached
+	 */
+	private static int invalidations = 0;
+
+	/**
+	 * Gets the schema of the given form, the schema is generated and cached if there is no cached
+	 * copy for the form's current version
+	 *
+	 * @param form the form whose schema to get
+	 * @return the schema for the form
+	 * @should return the cached schema for the same form and locale
+	 * @should generate the schema again in another locale
+	 * @should generate the schema again when the form is changed
+	 */
+	public static String getSchema(Form form) {
+		return getSchema(form, null);
+	}
+
+	/**
+	 * Gets the schema of the given form, generating it with the given concepts if it is not cached
+	 *
+	 * @param form the form whose schema to get
+	 * @param concepts the form's concepts from {@link FormEntryService#getFormConcepts(Form)}, null
+	 *            to load them if the schema needs to be generated
+	 * @return the schema for the form
+	 */
+	public static String getSchema(Form form, Map<Integer, Concept> concepts) {
+		if (form.getFormId() == null)
+			return new FormSchemaBuilder(form).getSchema();
+
+		String key = getKey(form.getFormId(), Context.getLocale());
+		String version = getVersion(form);
+		int invalidationsBefore;
+
+		synchronized (cache) {
+			CachedSchema cached = cache.get(key);
+			if (cached != null && cached.version.equals(version))
+				return cached.schema;
+			invalidationsBefore = invalidations;
+		}
+
+		// generate outside of the lock so that other forms aren't held up by it
+		if (log.isDebugEnabled())
+			log.debug("Generating schema " + key + " version " + version);
+
+		if (concepts == null)
+			concepts = Context.getService(FormEntryService.class).getFormConcepts(form);
+		String schema = new FormSchemaBuilder(form, concepts).getSchema();
+		Set<Integer> conceptIds = new HashSet<Integer>(concepts.keySet());
+
+		synchronized (cache) {
+			if (invalidations == invalidationsBefore)
+				cache.put(key, new CachedSchema(form.getFormId(), version, schema, conceptIds));
+		}
+
+		return schema;
+	}
+
+	/**
+	 * Removes the schemas of the given form from the cache, in all locales
+	 *
+	 * @param form the form that was changed or removed
+	 */
+	public static void invalidate(Form form) {
+		if (form == null || form.getFormId() == null)
+			return;
+
+		synchronized (cache) {
+			invalidations++;
+			for (Iterator<CachedSchema> i = cache.values().iterator(); i.hasNext();) {
+				if (i.next().formId.equals(form.getFormId()))
+					i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes the schemas of all the forms that use the given concept, either as the concept of a
+	 * field or as an answer to it
+	 *
+	 * @param concept the concept that was changed or removed
+	 */
+	public static void invalidate(Concept concept) {
+		if (concept == null || concept.getConceptId() == null)
+			return;
+
+		synchronized (cache) {
+			invalidations++;
+			for (Iterator<CachedSchema> i = cache.values().iterator(); i.hasNext();) {
+				if (i.next().conceptIds.contains(concept.getConceptId()))
+					i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes all the schemas from the cache
+	 */
+	public static void clear() {
+		synchronized (cache) {
+			invalidations++;
+			cache.clear();
+		}
+	}
+
+	private static String getKey(Integer formId, Locale locale) {
+		return formId + "|" + locale;
+	}
+
+	private static String getVersion(Form form) {
+		return FormEntryUtil.getFormSchemaNamespace(form) + "|"
+		        + (form.getDateChanged() == null ? "" : String.valueOf(form.getDateChanged().getTime()));
+	}
+
+	/**
+	 * A generated schema along with the form and version of the form it was generated from and the
+	 * ids of the concepts it depends on, the concepts of the form's fields and of their answers
+	 */
+	private static class CachedSchema {
+
+		private Integer formId;
+
+		private String version;
+
+		private String schema;
+
+		private Set<Integer> conceptIds;
+
+		public CachedSchema(Integer formId, String version, String schema, Set<Integer> conceptIds) {
+			this.formId = formId;
+			this.version = version;
+			this.schema = schema;
+			this.conceptIds = conceptIds;
+		}
+	}
+}
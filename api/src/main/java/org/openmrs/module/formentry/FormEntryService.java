@@ -13,12 +13,19 @@
  */
 package org.openmrs.module.formentry;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedMap;
 
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
 import org.openmrs.Form;
+import org.openmrs.Patient;
 import org.openmrs.annotation.Authorized;
+import org.openmrs.hl7.HL7InQueue;
 import org.openmrs.module.formentry.db.FormEntryDAO;
 import org.openmrs.util.PrivilegeConstants;
 import org.springframework.transaction.annotation.Transactional;
@@ -76,6 +83,37 @@ public interface FormEntryService {
 	@Authorized({ FormEntryConstants.PRIV_VIEW_FORMENTRY_QUEUE })
 	public FormEntryQueue getNextFormEntryQueue();
 	
+	/**
+	 * Atomically claims the next queue item for the given worker by moving it out of the queue
+	 * directory and into the worker's processing directory. A queue item can only be claimed by one
+	 * worker.
+	 * 
+	 * @param workerName name of the queue processor worker claiming the item
+	 * @return the claimed queue item or null if the queue is empty
+	 * @see FormEntryUtil#getFormEntryProcessingDir(String)
+	 */
+	@Authorized({ FormEntryConstants.PRIV_EDIT_FORMENTRY_QUEUE })
+	public FormEntryQueue claimNextFormEntryQueue(String workerName);
+	
+	/**
+	 * Moves any queue items still claimed by a worker (e.g. because the server was stopped while
+	 * they were being processed) back into the queue directory. Claimed items whose HL7 had already
+	 * been saved are archived instead.
+	 * 
+	 * @see #markFormEntryQueueSaved(FormEntryQueue)
+	 */
+	@Authorized({ FormEntryConstants.PRIV_EDIT_FORMENTRY_QUEUE })
+	public void releaseClaimedFormEntryQueues();
+	
+	/**
+	 * Marks a claimed queue item whose HL7 has been saved, so that it is archived rather than put
+	 * back into the queue (and transformed again) if it can't be archived right away
+	 * 
+	 * @param formEntryQueue the claimed queue item
+	 */
+	@Authorized({ FormEntryConstants.PRIV_EDIT_FORMENTRY_QUEUE })
+	public void markFormEntryQueueSaved(FormEntryQueue formEntryQueue);
+	
 	/**
 	 * Get the number of queue items waiting to be processed
 	 * 
@@ -94,6 +132,17 @@ public interface FormEntryService {
 	@Authorized({ FormEntryConstants.PRIV_ADD_FORMENTRY_ARCHIVE })
 	public void createFormEntryArchive(FormEntryArchive formEntryArchive);
 	
+	/**
+	 * Moves the file of the given queue item into the archive directory, the queue item's data is
+	 * not read or rewritten. The move is an atomic rename when the queue and archive directories
+	 * are on the same filesystem, otherwise the file is copied and then deleted.
+	 * 
+	 * @param formEntryQueue the processed queue item
+	 * @see #createFormEntryArchive(FormEntryArchive)
+	 */
+	@Authorized(value = { FormEntryConstants.PRIV_ADD_FORMENTRY_ARCHIVE, FormEntryConstants.PRIV_DELETE_FORMENTRY_QUEUE }, requireAll = true)
+	public void archiveFormEntryQueue(FormEntryQueue formEntryQueue);
+	
 	/**
 	 * Get all formentry archive items
 	 * 
@@ -181,11 +230,66 @@ public interface FormEntryService {
 	@Transactional(readOnly = true)
 	public String getSchema(Form form);
 	
+	/**
+	 * Loads the concepts used by the fields of the given form, along with their datatypes, answers
+	 * and names, with a few queries instead of one or more per field. The result can be handed to
+	 * {@link FormSchemaBuilder} and {@link FormXmlTemplateBuilder}.
+	 * 
+	 * @param form
+	 * @return the concepts of the form's fields and of their answers, by concept id
+	 * @should return the concepts of the form fields and of their answers
+	 * @should give the builders the same schema and template as loading the concepts per field
+	 */
+	@Transactional(readOnly = true)
+	public Map<Integer, Concept> getFormConcepts(Form form);
+	
+	/**
+	 * Gets the most recent non-voided encounters of a patient, newest first (the same order as
+	 * EncounterService.getEncountersByPatientId)
+	 * 
+	 * @param patient the patient whose encounters to get
+	 * @param maxResults the maximum number of encounters to get, 0 for all
+	 * @return the encounters
+	 * @should return at most maxResults encounters newest first
+	 * @should return all the encounters if maxResults is 0
+	 */
+	@Transactional(readOnly = true)
+	@Authorized({ PrivilegeConstants.VIEW_ENCOUNTERS })
+	public List<Encounter> getLatestEncounters(Patient patient, int maxResults);
+	
+	/**
+	 * Gets the patients with the given ids with a single query (per 1000 ids) instead of one per
+	 * patient
+	 * 
+	 * @param patientIds the ids of the patients to get
+	 * @return the patients by patient id, ids that aren't patients are left out
+	 */
+	@Transactional(readOnly = true)
+	@Authorized({ PrivilegeConstants.VIEW_PATIENTS })
+	public Map<Integer, Patient> getPatients(Collection<Integer> patientIds);
+	
 	/**
 	 * Clean up the jvm memory space and any cached dao items.
 	 */
 	public void garbageCollect();
 	
+	/**
+	 * Gets the timings and counts collected by the queue processor since the module was started
+	 * 
+	 * @return the queue pipeline metrics
+	 */
+	@Transactional(readOnly = true)
+	@Authorized({ FormEntryConstants.PRIV_VIEW_FORMENTRY_QUEUE })
+	public FormEntryMetrics getFormEntryMetrics();
+	
+	/**
+	 * Saves the given HL7 inbound queue items in a single transaction
+	 * 
+	 * @param hl7InQueues the transformed queue items to save
+	 */
+	@Authorized({ PrivilegeConstants.ADD_HL7_IN_QUEUE })
+	public void saveHL7InQueues(List<HL7InQueue> hl7InQueues);
+	
 	/**
 	 * Since version 2.6, formentry_queue and formentry_archives are stored in the filesystem. Here,
 	 * we make sure that there aren't any straggling entries in those tables. This moves the
@@ -275,6 +379,38 @@ public interface FormEntryService {
 	@Transactional(readOnly = true)
 	public FormEntryXsn getFormEntryXsnById(Integer xsnId);
 	
+	/**
+	 * Gets the id and creation date of the current xsn for a form without loading the xsn data, e.g.
+	 * to check whether a client's copy of the xsn is still current
+	 * 
+	 * @param formId id of the form that owns the xsn
+	 * @return the metadata of the non-archived xsn of the form or null if it has none
+	 */
+	@Transactional(readOnly = true)
+	public FormEntryXsnMetadata getFormEntryXsnMetadata(Integer formId);
+	
+	/**
+	 * Gets the metadata of a Form Entry XSN by its id without loading the xsn data
+	 * 
+	 * @param xsnId the id of the XSN
+	 * @return the XSN metadata or null if there is no XSN with the given id
+	 */
+	@Transactional(readOnly = true)
+	public FormEntryXsnMetadata getFormEntryXsnMetadataById(Integer xsnId);
+	
+	/**
+	 * Writes the data of the given xsn to the given stream, the data is read from the database
+	 * without loading the xsn entity. Whether it is streamed from the database depends on the jdbc
+	 * driver, MySQL Connector/J reads the whole data into memory
+	 * 
+	 * @param xsnId the id of the XSN to write
+	 * @param out the stream to write the data to
+	 * @return false if there is no XSN with the given id
+	 * @throws IOException if writing to the stream fails
+	 */
+	@Transactional(readOnly = true)
+	public boolean writeFormEntryXsnData(Integer xsnId, OutputStream out) throws IOException;
+	
 	/**
 	 * Deletes a Form Entry XSN object
 	 * 
@@ -291,4 +427,14 @@ public interface FormEntryService {
 	 */
 	@Authorized({ PrivilegeConstants.MANAGE_FORMS })
 	public void migrateFormEntryXsnToFilesystem(FormEntryXsn xsn);
+	
+	/**
+	 * Migrates a Form Entry XSN to the filesystem, deleting the original. The xsn data is streamed
+	 * from the database to the file without being loaded into memory. Only works on archived XSNs.
+	 * 
+	 * @param xsn the metadata of the Form Entry XSN to be migrated
+	 * @see #getFormEntryXsnMetadataById(Integer)
+	 */
+	@Authorized({ PrivilegeConstants.MANAGE_FORMS })
+	public void migrateFormEntryXsnToFilesystem(FormEntryXsnMetadata xsn);
 }
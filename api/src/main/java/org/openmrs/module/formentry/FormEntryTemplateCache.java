@@ -0,0 +1,162 @@
+package org.openmrs.module.formentry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.velocity.Template;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.log.CommonsLogLogChute;
+import org.openmrs.Form;
+
+/**
+ * Holds the parsed velocity templates of forms so that a form's template is only parsed once
+ * instead of on every prefilled form download. Entries are stored against the form id along with
+ * the version of the template resource they were parsed from (see
+ * {@link FormEntryUtil#getFormResourceVersion(Form, String)}), a replaced template is therefore
+ * never served from the cache. The cache holds at most {@link #MAX_SIZE} forms, the least recently
+ * used form is dropped first. <br/>
+ * <br/>
+ * Parsed {@link Template}s are thread safe, the same template can be merged by concurrent
+ * downloads of the form. The {@link VelocityEngine} that parses them is shared by the whole module
+ * (see {@link #getVelocityEngine()}) and is initialized once, when the module starts.
+ */
+public class FormEntryTemplateCache {
+
+	private static Log log = LogFactory.getLog(FormEntryTemplateCache.class);
+
+	/**
+	 * The maximum number of forms whose parsed template is kept in memory
+	 */
+	public static final int MAX_SIZE = 100;
+
+	private static final Map<Integer, CachedTemplate> cache = new LinkedHashMap<Integer, CachedTemplate>(16, 0.75f,
+	        true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, CachedTemplate> eldest) {
+			return size() > MAX_SIZE;
+		}
+	};
+
+	private static volatile VelocityEngine engine = null;
+
+	/**
+	 * Gets the parsed template of the given form, the template is parsed and cached if there is no
+	 * cached copy of the form's current template
+	 *
+	 * @param form the form whose template to get
+	 * @return the parsed template or null if the form has no (readable) template resource
+	 * @throws Exception if the template can't be parsed
+	 * @should parse the template again when the template resource is replaced
+	 * @should return null if the form has no template resource
+	 */
+	public static Template getTemplate(Form form) throws Exception {
+		String version = FormEntryUtil.getFormResourceVersion(form,
+		    FormEntryConstants.FORMENTRY_TEMPLATE_FORM_RESOURCE_NAME);
+		if (version == null)
+			return null;
+
+		synchronized (cache) {
+			CachedTemplate cached = cache.get(form.getFormId());
+			if (cached != null && cached.version.equals(version))
+				return cached.template;
+		}
+
+		// parse outside of the lock so that other forms aren't held up by it
+		if (log.isDebugEnabled())
+			log.debug("Parsing template version " + version + " for form " + form.getFormId());
+
+		Template template;
+		try {
+			template = getVelocityEngine().getTemplate(FormTemplateResourceLoader.getResourceName(form), "UTF-8");
+		}
+		catch (ResourceNotFoundException e) {
+			log.debug("Unable to load the template of form " + form.getFormId(), e);
+			return null;
+		}
+
+		synchronized (cache) {
+			cache.put(form.getFormId(), new CachedTemplate(version, template));
+		}
+
+		return template;
+	}
+
+	/**
+	 * Removes the parsed template of the given form from the cache
+	 *
+	 * @param form the form whose template was replaced or removed
+	 */
+	public static void invalidate(Form form) {
+		if (form == null || form.getFormId() == null)
+			return;
+
+		synchronized (cache) {
+			cache.remove(form.getFormId());
+		}
+	}
+
+	/**
+	 * Removes all the parsed templates from the cache
+	 */
+	public static void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Gets the velocity engine of the module, it loads form templates through
+	 * {@link FormTemplateResourceLoader} and can also evaluate templates that aren't cached. The
+	 * engine is thread safe, it is created on first use and then shared by all the callers.
+	 *
+	 * @return the initialized velocity engine
+	 * @throws Exception if velocity can't be initialized
+	 * @should be shared by threads using it at the same time
+	 */
+	public static VelocityEngine getVelocityEngine() throws Exception {
+		VelocityEngine ve = engine;
+		if (ve != null)
+			return ve;
+
+		return initializeVelocity();
+	}
+
+	private static synchronized VelocityEngine initializeVelocity() throws Exception {
+		if (engine == null) {
+			VelocityEngine ve = new VelocityEngine();
+			ve.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS,
+			    "org.apache.velocity.runtime.log.CommonsLogLogChute");
+			ve.setProperty(CommonsLogLogChute.LOGCHUTE_COMMONS_LOG_NAME, "formentry_velocity");
+			ve.setProperty(RuntimeConstants.RESOURCE_LOADER, "formentry");
+			// an instance rather than a class name, velocity can't see the module's classes
+			ve.setProperty("formentry.resource.loader.instance", new FormTemplateResourceLoader());
+			// the parsed templates are cached above, along with their version
+			ve.setProperty("formentry.resource.loader.cache", "false");
+			ve.init();
+			engine = ve;
+		}
+		return engine;
+	}
+
+	/**
+	 * A parsed template along with the version of the template resource it was parsed from
+	 */
+	private static class CachedTemplate {
+
+		private String version;
+
+		private Template template;
+
+		public CachedTemplate(String version, Template template) {
+			this.version = version;
+			this.template = template;
+		}
+	}
+}
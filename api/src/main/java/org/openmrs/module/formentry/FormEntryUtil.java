@@ -34,11 +34,16 @@ import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
@@ -54,12 +59,13 @@ import org.openmrs.Form;
 import org.openmrs.FormResource;
 import org.openmrs.User;
 import org.openmrs.api.APIException;
-import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
 import org.openmrs.customdatatype.CustomDatatype;
 import org.openmrs.customdatatype.CustomDatatypeHandler;
 import org.openmrs.customdatatype.CustomDatatypeUtil;
 import org.openmrs.customdatatype.datatype.LongFreeTextDatatype;
+import org.openmrs.module.formentry.cab.CabinetReader;
+import org.openmrs.module.formentry.cab.CabinetWriter;
 import org.openmrs.util.FormConstants;
 import org.openmrs.util.FormUtil;
 import org.openmrs.util.OpenmrsConstants;
@@ -74,23 +80,15 @@ public class FormEntryUtil {
 	private static Log log = LogFactory.getLog(FormEntryUtil.class);
 	
 	/**
-	 * Cached directory where queue items are stored
-	 * 
-	 * @see #getFormEntryQueueDir()
-	 */
-	private static File formEntryQueueDir = null;
-	
-	/**
-	 * Cached directory where gp says archive items are stored
-	 * 
-	 * @see #getFormEntryArchiveDir()
-	 */
-	private static String formEntryArchiveFileName = null;
-	
-	/**
-	 * A FilenameFilter for xsl files.
+	 * A FilenameFilter for xsl files. It has no state, so it is shared by forms published at the
+	 * same time.
 	 */
-	private static FilenameFilter xslFilenameFilter = null;
+	private static final FilenameFilter xslFilenameFilter = new FilenameFilter() {
+		
+		public boolean accept(File dir, String name) {
+			return name.endsWith("xsl");
+		}
+	};
 	
 	/**
 	 * Regex pattern for the end of the form in an XSL page (</body>)
@@ -108,6 +106,20 @@ public class FormEntryUtil {
 	 * @throws IOException
 	 */
 	public static File expandXsnContents(byte[] xsnFileContents) throws IOException {
+		File tempDir = createTempDirectory("XSN");
+		if (tempDir == null)
+			throw new IOException("Failed to create temporary directory");
+		
+		// expand in process when possible, without writing the xsn to a file first
+		try {
+			new CabinetReader(xsnFileContents).extractTo(tempDir);
+			return tempDir;
+		}
+		catch (IOException e) {
+			log.warn("Unable to expand the xsn in process, falling back to the external cab extractor", e);
+			clearDirectory(tempDir);
+		}
+		
 		// copy the xsn contents to a temporary directory
 		File tempXsnFromDatabaseDir = createTempDirectory("XSN-db-file");
 		if (tempXsnFromDatabaseDir == null)
@@ -120,11 +132,8 @@ public class FormEntryUtil {
 		out.flush();
 		out.close();
 		
-		String xsnFilePath = tmpXsnFromDatabaseFile.getAbsolutePath();
-		
-		File expandedContentsDir = null;
 		try {
-			expandedContentsDir = expandXsn(xsnFilePath);
+			extractCabinet(tmpXsnFromDatabaseFile.getAbsolutePath(), tempDir);
 		}
 		finally {
 			try {
@@ -135,7 +144,7 @@ public class FormEntryUtil {
 			}
 		}
 		
-		return expandedContentsDir;
+		return tempDir;
 	}
 	
 	/**
@@ -154,6 +163,32 @@ public class FormEntryUtil {
 		if (tempDir == null)
 			throw new IOException("Failed to create temporary directory");
 		
+		InputStream in = new FileInputStream(xsnFile);
+		try {
+			new CabinetReader(in).extractTo(tempDir);
+			return tempDir;
+		}
+		catch (IOException e) {
+			log.warn("Unable to expand " + xsnFilePath + " in process, falling back to the external cab extractor", e);
+			clearDirectory(tempDir);
+		}
+		finally {
+			in.close();
+		}
+		
+		extractCabinet(xsnFilePath, tempDir);
+		
+		return tempDir;
+	}
+	
+	/**
+	 * Expand the cabinet at <code>xsnFilePath</code> into the given directory with cabextract (or
+	 * expand on windows). Only used for the xsns that {@link CabinetReader} can't read.
+	 * 
+	 * @param xsnFilePath path of the xsn to expand
+	 * @param tempDir the directory to expand the xsn into
+	 */
+	private static void extractCabinet(String xsnFilePath, File tempDir) {
 		StringBuffer cmdBuffer = new StringBuffer();
 		
 		if (OpenmrsConstants.UNIX_BASED_OPERATING_SYSTEM) {
@@ -179,8 +214,25 @@ public class FormEntryUtil {
 			        .append("\"");
 			execCmd(cmdBuffer.toString(), null);
 		}
+	}
+	
+	/**
+	 * Deletes the contents of the given directory, leaving the directory itself
+	 * 
+	 * @param dir the directory to empty
+	 * @throws IOException if a subdirectory can't be deleted
+	 */
+	private static void clearDirectory(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
 		
-		return tempDir;
+		for (File file : files) {
+			if (file.isDirectory())
+				OpenmrsUtil.deleteDirectory(file);
+			else
+				file.delete();
+		}
 	}
 	
 	/**
@@ -282,6 +334,201 @@ public class FormEntryUtil {
 		return new Object[] { compileXSN(form, tempDir), tempDir };
 	}
 	
+	/**
+	 * Writes the current xsn of a form to the given stream, compiled with a freshly generated
+	 * schema and templates. Unlike {@link #getCurrentXSN(Form, boolean)} the xsn is expanded,
+	 * modified and rebuilt in memory, nothing is written to the temp directory unless the xsn can
+	 * only be expanded by the external cab extractor.
+	 * 
+	 * @param form the form whose xsn to write
+	 * @param defaultToStarter true/false whether or not the starter xsn is used when no current xsn
+	 *            is found
+	 * @param out the stream to write the xsn to, it is not closed
+	 * @return false if the form has no xsn (and defaultToStarter is false)
+	 * @throws IOException if the xsn can't be compiled or written
+	 * @should write the same xsn contents as getCurrentXSN
+	 */
+	public static boolean writeCurrentXSN(Form form, boolean defaultToStarter, OutputStream out) throws IOException {
+		return writeCurrentXSN(form, defaultToStarter, null, out);
+	}
+	
+	/**
+	 * @param generated the schema and templates from {@link #generateXSNFiles(Form)}, null to
+	 *            generate them
+	 * @see #writeCurrentXSN(Form, boolean, OutputStream)
+	 */
+	private static boolean writeCurrentXSN(Form form, boolean defaultToStarter, String[] generated, OutputStream out)
+	        throws IOException {
+		Map<String, byte[]> files;
+		try {
+			files = getCurrentXSNFiles(form, defaultToStarter);
+		}
+		catch (IOException e) {
+			// same rule as expandXsnContents: whatever the in process reader can't read is left to cabextract
+			log.warn("Unable to expand the xsn of form " + form + " in memory, using a temporary directory", e);
+			
+			Object[] streamAndDir = getCurrentXSN(form, defaultToStarter);
+			InputStream formStream = (InputStream) streamAndDir[0];
+			if (formStream == null)
+				return false;
+			
+			try {
+				IOUtils.copy(formStream, out);
+			}
+			finally {
+				formStream.close();
+				OpenmrsUtil.deleteDirectory((File) streamAndDir[1]);
+			}
+			return true;
+		}
+		
+		if (files == null)
+			return false;
+		
+		compileXSN(form, generated == null ? generateXSNFiles(form) : generated, files);
+		
+		CabinetWriter writer = new CabinetWriter();
+		for (Map.Entry<String, byte[]> file : files.entrySet())
+			writer.addFile(file.getKey(), file.getValue());
+		writer.write(out);
+		
+		return true;
+	}
+	
+	/**
+	 * Expands the current xsn of a form (or the starter xsn) into memory
+	 * 
+	 * @param form the form whose xsn to expand
+	 * @param defaultToStarter whether to use the starter xsn when the form has none
+	 * @return map from file name to contents, names are looked up case insensitively like
+	 *         {@link #findFile(File, String)} does. Null if the form has no xsn and
+	 *         defaultToStarter is false
+	 * @throws IOException if the xsn can't be expanded, in which case the caller falls back to
+	 *             {@link #getCurrentXSN(Form, boolean)}
+	 */
+	private static Map<String, byte[]> getCurrentXSNFiles(Form form, boolean defaultToStarter) throws IOException {
+		FormEntryService formEntryService = (FormEntryService) Context.getService(FormEntryService.class);
+		FormEntryXsn xsn = formEntryService.getFormEntryXsn(form);
+		
+		Map<String, byte[]> files = new TreeMap<String, byte[]>(String.CASE_INSENSITIVE_ORDER);
+		if (xsn != null) {
+			log.debug("Expanding xsn contents in memory");
+			files.putAll(new CabinetReader(xsn.getXsnData()).getFiles());
+		} else if (defaultToStarter == true) {
+			log.debug("Using starter xsn");
+			File starterDir = getResourceFile(FormEntryConstants.FORMENTRY_STARTER_XSN_FOLDER_PATH);
+			for (File f : starterDir.listFiles()) {
+				if (f.isFile())
+					files.put(f.getName(), OpenmrsUtil.getFileAsBytes(f));
+			}
+		} else
+			return null;
+		
+		return files;
+	}
+	
+	/**
+	 * Replaces the schema, template.xml, sample data and defaults in the expanded xsn
+	 * <code>files</code>, the in memory counterpart of {@link #compileXSN(Form, File)}
+	 * 
+	 * @param form
+	 * @param generated the schema and templates from {@link #generateXSNFiles(Form)}
+	 * @param files the expanded xsn, modified in place
+	 * @throws IOException if one of the files to replace is missing
+	 */
+	private static void compileXSN(Form form, String[] generated, Map<String, byte[]> files) throws IOException {
+		String schema = generated[0];
+		String template = generated[1];
+		String templateWithDefaultScripts = generated[2];
+		
+		replaceXSNFile(files, FormEntryConstants.FORMENTRY_DEFAULT_SCHEMA_NAME, "Schema", schema, form);
+		replaceXSNFile(files, FormEntryConstants.FORMENTRY_DEFAULT_TEMPLATE_NAME, "Template", template, form);
+		replaceXSNFile(files, FormEntryConstants.FORMENTRY_DEFAULT_DEFAULTS_NAME, "Defaults", templateWithDefaultScripts,
+		    form);
+		replaceXSNFile(files, FormEntryConstants.FORMENTRY_DEFAULT_SAMPLEDATA_NAME, "Template", template, form);
+	}
+	
+	/**
+	 * Generates the parts of the xsn that are rebuilt from the form: the schema, template.xml and
+	 * the template with the default scripts
+	 * 
+	 * @param form
+	 * @return array: [0]: schema, [1]: template, [2]: template with default scripts
+	 */
+	private static String[] generateXSNFiles(Form form) {
+		// load all the concepts of the form up front instead of one field at a time
+		Map<Integer, Concept> concepts = ((FormEntryService) Context.getService(FormEntryService.class))
+		        .getFormConcepts(form);
+		
+		FormXmlTemplateBuilder fxtb = new FormXmlTemplateBuilder(form, getFormAbsoluteUrl(form), concepts);
+		String template = fxtb.getXmlTemplate(false);
+		String templateWithDefaultScripts = fxtb.getXmlTemplate(true);
+		String schema = FormEntrySchemaCache.getSchema(form, concepts);
+		
+		return new String[] { schema, template, templateWithDefaultScripts };
+	}
+	
+	/**
+	 * Computes a fingerprint of the parts of the xsn that {@link #rebuildXSN(Form)} generates from
+	 * the form. Two rebuilds with the same fingerprint give the same xsn, so the second one can be
+	 * skipped. <br/>
+	 * <br/>
+	 * Publishing an xsn increments the build of the form, which ends up in the schema namespace,
+	 * the form url and the solution version. Those are replaced by placeholders before hashing, the
+	 * server url and the version of the form are hashed instead.
+	 * 
+	 * @param form
+	 * @return hex encoded SHA-1 hash
+	 */
+	public static String getXSNFingerprint(Form form) {
+		return getXSNFingerprint(form, generateXSNFiles(form));
+	}
+	
+	private static String getXSNFingerprint(Form form, String[] generated) {
+		String solutionVersion = getSolutionVersion(form);
+		String[] searchList = { getFormSchemaNamespace(form), getFormAbsoluteUrl(form),
+		        "solutionVersion=\"" + solutionVersion + "\"" };
+		String[] replacementList = { "@FORM_NAMESPACE@", "@FORM_URL@", "solutionVersion=\"@SOLUTION_VERSION@\"" };
+		
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new APIException("SHA-1 is not available", e);
+		}
+		
+		updateDigest(digest, Context.getAdministrationService().getGlobalProperty(FormEntryConstants.FORMENTRY_GP_SERVER_URL));
+		updateDigest(digest, solutionVersion.substring(0, solutionVersion.lastIndexOf('.')));
+		for (String contents : generated)
+			updateDigest(digest, StringUtils.replaceEach(contents, searchList, replacementList));
+		
+		StringBuilder hex = new StringBuilder(40);
+		for (byte b : digest.digest())
+			hex.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+		return hex.toString();
+	}
+	
+	private static void updateDigest(MessageDigest digest, String value) {
+		try {
+			if (value != null)
+				digest.update(value.getBytes("UTF-8"));
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new APIException("UTF-8 is not supported", e);
+		}
+		// separates the values so that moving text from one to the next changes the hash
+		digest.update((byte) 0);
+	}
+	
+	private static void replaceXSNFile(Map<String, byte[]> files, String filename, String description, String contents,
+	        Form form) throws IOException {
+		if (!files.containsKey(filename))
+			throw new IOException(description + ": '" + filename + "' cannot be null. Compiling xsn for form " + form);
+		
+		files.put(filename, contents.getBytes("UTF-8"));
+	}
+	
 	/**
 	 * Modifies schema, template.xml, and sample data, defaults, urls in <code>tmpXSN</code>
 	 * 
@@ -296,13 +543,12 @@ public class FormEntryUtil {
 		String templateFilename = FormEntryConstants.FORMENTRY_DEFAULT_TEMPLATE_NAME;
 		String sampleDataFilename = FormEntryConstants.FORMENTRY_DEFAULT_SAMPLEDATA_NAME;
 		String defaultsFilename = FormEntryConstants.FORMENTRY_DEFAULT_DEFAULTS_NAME;
-		String url = getFormAbsoluteUrl(form);
 		
 		// Generate the schema and template.xml
-		FormXmlTemplateBuilder fxtb = new FormXmlTemplateBuilder(form, url);
-		String template = fxtb.getXmlTemplate(false);
-		String templateWithDefaultScripts = fxtb.getXmlTemplate(true);
-		String schema = new FormSchemaBuilder(form).getSchema();
+		String[] generated = generateXSNFiles(form);
+		String schema = generated[0];
+		String template = generated[1];
+		String templateWithDefaultScripts = generated[2];
 		
 		// Generate and overwrite the schema
 		File schemaFile = findFile(tempDir, schemaFilename);
@@ -351,47 +597,65 @@ public class FormEntryUtil {
 	 * Make an xsn (aka CAB file) with the contents of <code>tempDir</code>
 	 * 
 	 * @param tempDir
+	 * @throws IOException if the files can't be read or the xsn can't be written
 	 */
-	public static void makeCab(File tempDir, String outputDirName, String outputFilename) {
-		// """calls MakeCAB to make a CAB file from DDF in tempdir directory"""
+	public static void makeCab(File tempDir, String outputDirName, String outputFilename) throws IOException {
+		File outputFile = new File(outputDirName, outputFilename);
+		byte[] cab = buildCab(tempDir, outputFile);
 		
-		StringBuffer cmdBuffer = new StringBuffer();
-		
-		// Special case : Linux operating sytem uses lcab utility
-		if (OpenmrsConstants.UNIX_BASED_OPERATING_SYSTEM) {
-			
-			String lcabLocation = FormEntryConstants.FORMENTRY_LCAB_LOCATION;
-			if (lcabLocation == null)
-				lcabLocation = "/usr/local/bin/lcab";
-			
-			File lcabExecutable = new File(lcabLocation);
-			if (!lcabExecutable.exists()) {
-				log.warn("lcab not found at "
-				        + lcabLocation
-				        + ", using lcab from search path. SERIOUS: This may be a security violation! Please set the formentry.lcab_location runtime property to the proper path.");
-				lcabLocation = "lcab"; // ABK: not at the hard-coded location,
-				                       // so hope to find it on the path
-			}
-			
-			cmdBuffer.append(lcabLocation + " -rn ").append(tempDir).append(" ").append(outputDirName).append("/")
-			        .append(outputFilename);
-			
-			// Execute command with working directory
-			execCmd(cmdBuffer.toString(), tempDir);
+		OutputStream out = new FileOutputStream(outputFile);
+		try {
+			out.write(cab);
 		}
-		// Otherwise, assume windows
-		else {
-			// create ddf
-			FormEntryUtil.createDdf(tempDir, outputDirName, outputFilename);
-			
-			// Create makecab command
-			cmdBuffer.append("makecab /F \"").append(tempDir.getAbsolutePath()).append("\\publish.ddf\"");
-			
-			// Execute command without working directory
-			execCmd(cmdBuffer.toString(), null);
-			
+		finally {
+			out.close();
 		}
+	}
+	
+	/**
+	 * Make an xsn (aka CAB file) with the contents of <code>dir</code>, without writing it to disk
+	 * 
+	 * @param dir directory containing the xsn files
+	 * @return the xsn
+	 * @throws IOException if the files can't be read
+	 */
+	public static byte[] makeCab(File dir) throws IOException {
+		return buildCab(dir, null);
+	}
+	
+	/**
+	 * Builds a cab with the files in <code>dir</code> and its subdirectories, stored without their
+	 * paths (like lcab -rn did). The files are added in name order so that the same files always
+	 * make the same cab.
+	 * 
+	 * @param dir directory containing the files
+	 * @param exclude a file not to add, may be null
+	 * @return the cab
+	 * @throws IOException if the files can't be read
+	 */
+	private static byte[] buildCab(File dir, File exclude) throws IOException {
+		List<File> files = new ArrayList<File>();
+		collectCabFiles(dir, exclude, files);
 		
+		CabinetWriter writer = new CabinetWriter();
+		for (File file : files)
+			writer.addFile(file.getName(), OpenmrsUtil.getFileAsBytes(file));
+		
+		return writer.toByteArray();
+	}
+	
+	private static void collectCabFiles(File dir, File exclude, List<File> files) {
+		File[] children = dir.listFiles();
+		if (children == null)
+			return;
+		
+		Arrays.sort(children);
+		for (File child : children) {
+			if (child.isDirectory())
+				collectCabFiles(child, exclude, files);
+			else if (!child.equals(exclude) && !child.getName().equalsIgnoreCase("publish.ddf"))
+				files.add(child);
+		}
 	}
 	
 	/**
@@ -507,7 +771,9 @@ public class FormEntryUtil {
 	 * @param xsnDir
 	 * @param outputDir
 	 * @param outputFileName
+	 * @deprecated xsns are built with {@link CabinetWriter}, makecab and its ddf are not used anymore
 	 */
+	@Deprecated
 	public static void createDdf(File xsnDir, String outputDir, String outputFileName) {
 		String ddf = ";*** MakeCAB Directive file for " + outputFileName + "\n" + ".OPTION EXPLICIT			; generate errors\n"
 		        + ".Set CabinetNameTemplate=" + outputFileName + "\n"
@@ -610,17 +876,39 @@ public class FormEntryUtil {
 	 * @return directory in which to store queued items
 	 */
 	public static File getFormEntryQueueDir() {
+		// the global property is cached so we don't have to hit the db everytime
+		return FormEntryConfiguration.getQueueDir();
+	}
+	
+	/**
+	 * Gets the directory in which queue items are held while a queue processor worker is
+	 * transforming them. It sits next to the queue directory so that claimed items are never
+	 * listed as queue items.
+	 * 
+	 * @return parent directory of all worker processing directories
+	 */
+	public static File getFormEntryProcessingDir() {
+		File queueDir = getFormEntryQueueDir();
+		File processingDir = new File(queueDir.getParentFile(), queueDir.getName()
+		        + FormEntryConstants.FORMENTRY_QUEUE_PROCESSING_DIR_SUFFIX);
+		if (!processingDir.exists())
+			processingDir.mkdirs();
+		
+		return processingDir;
+	}
+	
+	/**
+	 * Gets the directory that the given queue processor worker moves its claimed queue items into
+	 * 
+	 * @param workerName name of the worker claiming queue items
+	 * @return directory holding the queue items claimed by the worker
+	 */
+	public static File getFormEntryProcessingDir(String workerName) {
+		File workerDir = new File(getFormEntryProcessingDir(), workerName);
+		if (!workerDir.exists())
+			workerDir.mkdirs();
 		
-		if (formEntryQueueDir == null) {
-			AdministrationService as = Context.getAdministrationService();
-			String folderName = as.getGlobalProperty(FormEntryConstants.FORMENTRY_GP_QUEUE_DIR,
-			    FormEntryConstants.FORMENTRY_GP_QUEUE_DIR_DEFAULT);
-			formEntryQueueDir = OpenmrsUtil.getDirectoryInApplicationDataDirectory(folderName);
-			if (log.isDebugEnabled())
-				log.debug("Loaded formentry queue directory from global properties: " + formEntryQueueDir.getAbsolutePath());
-		}
-		
-		return formEntryQueueDir;
+		return workerDir;
 	}
 	
 	/**
@@ -630,16 +918,9 @@ public class FormEntryUtil {
 	 * @return directory in which to store archived items
 	 */
 	public static File getFormEntryArchiveDir(Date d) {
-		// cache the global property location so we don't have to hit the db
-		// everytime
-		if (formEntryArchiveFileName == null) {
-			AdministrationService as = Context.getAdministrationService();
-			formEntryArchiveFileName = as.getGlobalProperty(FormEntryConstants.FORMENTRY_GP_QUEUE_ARCHIVE_DIR,
-			    FormEntryConstants.FORMENTRY_GP_QUEUE_ARCHIVE_DIR_DEFAULT);
-		}
-		
+		// the global property is cached so we don't have to hit the db everytime
 		// replace %Y %M %D in the folderName with the date
-		String folderName = replaceVariables(formEntryArchiveFileName, d);
+		String folderName = replaceVariables(FormEntryConfiguration.getArchiveDirPattern(), d);
 		
 		// get the file object for this potentially new file
 		File formEntryArchiveDir = OpenmrsUtil.getDirectoryInApplicationDataDirectory(folderName);
@@ -702,6 +983,28 @@ public class FormEntryUtil {
 		return OpenmrsUtil.getOutFile(dir, date, user);
 	}
 	
+	/**
+	 * Creates a new empty file in the given directory, named like {@link #getOutFile(File, Date, User)}.
+	 * The name is taken with {@link File#createNewFile()}, so two callers never get the same file
+	 * even if they pick the same name at the same moment.
+	 * 
+	 * @param dir the directory to create the file in
+	 * @param date the date to name the file after
+	 * @param user the user to name the file after
+	 * @return the new, empty file
+	 * @throws IOException if no file could be created
+	 * @should create a new empty file
+	 */
+	public static File createOutFile(File dir, Date date, User user) throws IOException {
+		for (int attempt = 0; attempt < 100; attempt++) {
+			File outFile = OpenmrsUtil.getOutFile(dir, date, user);
+			if (outFile.createNewFile())
+				return outFile;
+		}
+		
+		throw new IOException("Unable to create a new file in: " + dir.getAbsolutePath());
+	}
+	
 	/**
 	 * Writes the give fileContentst to the given outFile
 	 * 
@@ -717,6 +1020,90 @@ public class FormEntryUtil {
 		writer.close();
 	}
 	
+	/**
+	 * Moves the given file to the given target. The file is renamed if possible, which is atomic
+	 * when both are on the same filesystem. Otherwise its bytes are copied into a temporary file
+	 * next to the target, which is then renamed to the target before the source file is deleted,
+	 * so the target never exists with partial contents. <br/>
+	 * <br/>
+	 * The target must be an empty file that reserves its name (see
+	 * {@link #createOutFile(File, Date, User)}), a file with contents is never replaced.
+	 * 
+	 * @param file the file to move
+	 * @param target the new location of the file, an empty file reserving the name
+	 * @throws IOException if the file can't be moved
+	 * @should rename the file to the target
+	 * @should not replace a file with contents
+	 */
+	public static void moveFile(File file, File target) throws IOException {
+		if (!target.isFile() || target.length() > 0)
+			throw new IOException("Unable to move " + file.getAbsolutePath() + ", the target is not an empty file: "
+			        + target.getAbsolutePath());
+		
+		if (renameOntoReserved(file, target))
+			return;
+		
+		if (!file.isFile()) {
+			target.delete();
+			throw new FileNotFoundException("Unable to move missing file: " + file.getAbsolutePath());
+		}
+		
+		File partFile = new File(target.getParentFile(), target.getName() + ".part");
+		FileChannel in = null, out = null;
+		try {
+			in = new FileInputStream(file).getChannel();
+			out = new FileOutputStream(partFile).getChannel();
+			long size = in.size(), position = 0;
+			while (position < size)
+				position += in.transferTo(position, size - position, out);
+			out.force(true);
+		}
+		finally {
+			if (in != null)
+				in.close();
+			if (out != null)
+				out.close();
+		}
+		
+		if (!renameOntoReserved(partFile, target)) {
+			partFile.delete();
+			target.delete();
+			throw new IOException("Unable to move " + file.getAbsolutePath() + " to " + target.getAbsolutePath());
+		}
+		
+		if (!file.delete())
+			log.warn("Unable to delete file after copying it to " + target.getAbsolutePath() + ": " + file.getAbsolutePath());
+	}
+	
+	/**
+	 * Renames a file onto the empty file that reserves the target name. Platforms that can't
+	 * rename onto an existing file have the reservation removed first, and taken back if the rename
+	 * still fails.
+	 * 
+	 * @param file the file to rename
+	 * @param target the empty file reserving the name
+	 * @return true if the file was renamed
+	 */
+	private static boolean renameOntoReserved(File file, File target) {
+		if (file.renameTo(target))
+			return true;
+		
+		if (target.length() > 0 || !target.delete())
+			return false;
+		
+		if (file.renameTo(target))
+			return true;
+		
+		try {
+			if (!target.createNewFile())
+				log.warn("Lost the reservation of file: " + target.getAbsolutePath());
+		}
+		catch (IOException e) {
+			log.warn("Unable to reserve file again: " + target.getAbsolutePath(), e);
+		}
+		return false;
+	}
+	
 	/**
 	 * Creates a zip file in <code>xsnDir</code> containing the <code>filesToZip</code> The name of
 	 * the dir is
@@ -792,28 +1179,32 @@ public class FormEntryUtil {
 	/**
 	 * The rebuilding process is basically just a download and reupload of the xsn. The point of
 	 * rebuilding would be to get a new schema into the xsn or to get new concepts/concept answers
-	 * into the form
+	 * into the form. <br/>
+	 * <br/>
+	 * The xsn is not rebuilt if the schema and templates generated from the form have the same
+	 * fingerprint as the ones in the current xsn (see {@link #getXSNFingerprint(Form)})
 	 * 
 	 * @param form Form to rebuild the xsn for
+	 * @return true if the xsn was rebuilt, false if it was already up to date
+	 * @should not rebuild the xsn if the fingerprint matches
 	 */
-	public static void rebuildXSN(Form form) throws IOException {
-		Object[] streamAndDir = FormEntryUtil.getCurrentXSN(form, true);
-		InputStream formStream = (InputStream) streamAndDir[0];
-		File tempDir = (File) streamAndDir[1];
+	public static boolean rebuildXSN(Form form) throws IOException {
+		String[] generated = generateXSNFiles(form);
+		String fingerprint = getXSNFingerprint(form, generated);
 		
-		if (formStream == null)
-			throw new IOException("The formstream for form: " + form + " should not be null (but it is)");
+		FormEntryService formEntryService = (FormEntryService) Context.getService(FormEntryService.class);
+		FormEntryXsnMetadata current = formEntryService.getFormEntryXsnMetadata(form.getFormId());
+		if (current != null && fingerprint.equals(current.getFingerprint())) {
+			log.debug("The xsn of form " + form + " is up to date, not rebuilding it");
+			return false;
+		}
 		
-		PublishInfoPath.publishXSN(formStream);
+		ByteArrayOutputStream xsn = new ByteArrayOutputStream();
+		if (!FormEntryUtil.writeCurrentXSN(form, true, generated, xsn))
+			throw new IOException("The formstream for form: " + form + " should not be null (but it is)");
 		
-		try {
-			formStream.close();
-		}
-		catch (IOException ioe) {}
-		try {
-			OpenmrsUtil.deleteDirectory(tempDir);
-		}
-		catch (IOException ioe) {}
+		PublishInfoPath.publishXSN(new ByteArrayInputStream(xsn.toByteArray()), null, fingerprint);
+		return true;
 	}
 	
 	/**
@@ -988,19 +1379,9 @@ public class FormEntryUtil {
 	}
 	
 	/**
-	 * Lazy factory method of xslFilenameFilter. STOLEN from PublishInfoPath
-	 * 
-	 * @return a cached FilenameFilter for *.xsl files
+	 * @return the FilenameFilter for *.xsl files
 	 */
 	private static FilenameFilter getXslFilenameFilter() {
-		if (xslFilenameFilter == null) {
-			xslFilenameFilter = new FilenameFilter() {
-				
-				public boolean accept(File dir, String name) {
-					return name.endsWith("xsl");
-				}
-			};
-		}
 		return xslFilenameFilter;
 	}
 	
@@ -1059,6 +1440,11 @@ public class FormEntryUtil {
 				formResource.setPreferredHandlerClassname(LongFreeTextFileUploadHandler.class.getName());
 			formResource.setValue(resource);
 			Context.getFormService().saveFormResource(formResource);
+			
+			if (FormEntryConstants.FORMENTRY_XSLT_FORM_RESOURCE_NAME.equals(resourceName))
+				FormEntryXsltCache.invalidate(form);
+			else if (FormEntryConstants.FORMENTRY_TEMPLATE_FORM_RESOURCE_NAME.equals(resourceName))
+				FormEntryTemplateCache.invalidate(form);
 		}
 		catch (Exception e) {
 			log.error("Error while saving form resource:", e);
@@ -1085,6 +1471,35 @@ public class FormEntryUtil {
 		return defaultXslt;
 	}
 	
+	/**
+	 * Gets a string identifying the version of the xslt currently used by the form, the value
+	 * changes whenever the form's xslt resource is replaced
+	 * 
+	 * @param form the {@link Form} object
+	 * @return the version string, "default" if the form uses the default xslt
+	 * @should return a different version when the xslt resource is replaced
+	 */
+	public static String getFormXsltVersion(Form form) {
+		String version = getFormResourceVersion(form, FormEntryConstants.FORMENTRY_XSLT_FORM_RESOURCE_NAME);
+		return (version == null) ? "default" : version;
+	}
+	
+	/**
+	 * Gets a string identifying the version of the form resource with the specified name, made up
+	 * of the resource id and the reference to its stored value
+	 * 
+	 * @param form the form
+	 * @param resourceName the name of the form resource
+	 * @return the version string or null if the form has no such resource
+	 */
+	public static String getFormResourceVersion(Form form, String resourceName) {
+		FormResource resource = Context.getFormService().getFormResource(form, resourceName);
+		if (resource == null)
+			return null;
+		
+		return resource.getFormResourceId() + ":" + resource.getValueReference();
+	}
+	
 	/**
 	 * Gets a an xslt or template form resource with the specified resource name suffix, the for
 	 * 
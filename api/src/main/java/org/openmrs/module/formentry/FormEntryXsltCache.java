@@ -0,0 +1,141 @@
+package org.openmrs.module.formentry;
+
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Form;
+
+/**
+ * Holds the compiled xslts of forms so that a form's stylesheet is only compiled once instead of
+ * once per queue item. Entries are stored against the form id along with the version of the xslt
+ * resource they were compiled from (see {@link FormEntryUtil#getFormXsltVersion(Form)}), a
+ * replaced xslt is therefore never served from the cache. The cache holds at most
+ * {@link #MAX_SIZE} forms, the least recently used form is dropped first. <br/>
+ * <br/>
+ * {@link Templates} objects are thread safe so the same compiled xslt can be shared by all the
+ * queue processor threads.
+ */
+public class FormEntryXsltCache {
+
+	private static Log log = LogFactory.getLog(FormEntryXsltCache.class);
+
+	/**
+	 * The maximum number of forms whose compiled xslt is kept in memory
+	 */
+	public static final int MAX_SIZE = 100;
+
+	private static final Map<Integer, CachedTemplates> cache = new LinkedHashMap<Integer, CachedTemplates>(16, 0.75f,
+	        true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, CachedTemplates> eldest) {
+			return size() > MAX_SIZE;
+		}
+	};
+
+	/**
+	 * Gets the compiled xslt for the given form, the xslt is compiled with the given factory and
+	 * cached if there is no cached copy for the form's current xslt
+	 *
+	 * @param form the form whose xslt to get
+	 * @param transformerFactory the factory used to compile the xslt
+	 * @return the compiled xslt
+	 * @throws TransformerConfigurationException if the xslt can't be compiled
+	 */
+	public static Templates getTemplates(Form form, TransformerFactory transformerFactory)
+	        throws TransformerConfigurationException {
+		String version = FormEntryUtil.getFormXsltVersion(form);
+
+		synchronized (cache) {
+			CachedTemplates cached = cache.get(form.getFormId());
+			if (cached != null && cached.version.equals(version))
+				return cached.templates;
+		}
+
+		// compile outside of the lock so that other forms aren't held up by it
+		if (log.isDebugEnabled())
+			log.debug("Compiling xslt version " + version + " for form " + form.getFormId());
+
+		long start = FormEntryMetrics.startTimer();
+		Templates templates = transformerFactory.newTemplates(new StreamSource(new StringReader(FormEntryUtil
+		        .getFormXslt(form))));
+		FormEntryMetrics.record(FormEntryMetrics.Stage.XSLT_COMPILE, start);
+
+		synchronized (cache) {
+			cache.put(form.getFormId(), new CachedTemplates(version, templates));
+		}
+
+		return templates;
+	}
+
+	/**
+	 * Compiles the current xslt of the given form into the cache ahead of its first use, nothing is
+	 * compiled if it is already cached
+	 *
+	 * @param form the form whose xslt to compile
+	 * @throws TransformerConfigurationException if the xslt can't be compiled
+	 * @see PrecompileFormXsltsThread
+	 */
+	public static void precompile(Form form) throws TransformerConfigurationException {
+		getTemplates(form, newTransformerFactory());
+	}
+
+	/**
+	 * Creates the (saxon) factory that form xslts are compiled with. Factories are not thread safe,
+	 * each thread compiling xslts needs its own.
+	 *
+	 * @return a new transformer factory
+	 */
+	public static TransformerFactory newTransformerFactory() {
+		System.setProperty("javax.xml.transform.TransformerFactory", "net.sf.saxon.TransformerFactoryImpl");
+		return TransformerFactory.newInstance();
+	}
+
+	/**
+	 * Removes the compiled xslt of the given form from the cache
+	 *
+	 * @param form the form whose xslt was replaced or removed
+	 */
+	public static void invalidate(Form form) {
+		if (form == null || form.getFormId() == null)
+			return;
+
+		synchronized (cache) {
+			cache.remove(form.getFormId());
+		}
+	}
+
+	/**
+	 * Removes all the compiled xslts from the cache
+	 */
+	public static void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * A compiled xslt along with the version of the xslt resource it was compiled from
+	 */
+	private static class CachedTemplates {
+
+		private String version;
+
+		private Templates templates;
+
+		public CachedTemplates(String version, Templates templates) {
+			this.version = version;
+			this.templates = templates;
+		}
+	}
+}
@@ -33,6 +33,7 @@ public class FormEntryXsn extends BaseOpenmrsObject {
 	private Date dateCreated;
 	private User archivedBy;
 	private Date dateArchived;
+	private String fingerprint;
 
 	/**
 	 * Default constructor
@@ -160,6 +161,22 @@ public class FormEntryXsn extends BaseOpenmrsObject {
 		this.xsnData = xsnData;
 	}
 
+	/**
+	 * @return the fingerprint of the generated parts of the xsn, null if the xsn was uploaded
+	 * @see FormEntryUtil#getXSNFingerprint(Form)
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * @param fingerprint
+	 *            the fingerprint to set
+	 */
+	public void setFingerprint(String fingerprint) {
+		this.fingerprint = fingerprint;
+	}
+
 	public Integer getId() {
 		return getFormEntryXsnId();
 	}
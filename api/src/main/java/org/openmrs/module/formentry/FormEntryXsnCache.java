@@ -0,0 +1,323 @@
+package org.openmrs.module.formentry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * Holds the data of the current xsns so that downloading a form doesn't read the xsn blob from the
+ * database every time. The data is kept in two tiers:
+ * <ul>
+ * <li>on disk, in the {@link #DISK_CACHE_DIR} folder of the application data directory, one file
+ * per form. These files are sent with {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+ * and survive restarts.</li>
+ * <li>in memory, for xsns of up to {@link #MAX_MEMORY_ENTRY_BYTES}, holding at most
+ * {@link #MAX_MEMORY_BYTES} in total. The least recently downloaded xsn is dropped first.</li>
+ * </ul>
+ * Entries are stored against the form id along with the id of the xsn they hold. Creating an xsn
+ * gives it a new id, so an entry is never served for a form whose xsn has been replaced, even
+ * before {@link #invalidate(Integer)} is called.
+ *
+ * @see FormEntryService#getFormEntryXsnMetadata(Integer)
+ */
+public class FormEntryXsnCache {
+
+	private static Log log = LogFactory.getLog(FormEntryXsnCache.class);
+
+	/**
+	 * The folder in the application data directory that holds the cached xsn files
+	 */
+	public static final String DISK_CACHE_DIR = "formentry/xsn_cache";
+
+	/**
+	 * The maximum number of bytes of xsn data kept in memory
+	 */
+	public static final long MAX_MEMORY_BYTES = 32 * 1024 * 1024;
+
+	/**
+	 * Xsns larger than this are only cached on disk
+	 */
+	public static final long MAX_MEMORY_ENTRY_BYTES = MAX_MEMORY_BYTES / 8;
+
+	private static final String EXTENSION = ".xsn";
+
+	private static final Map<Integer, CachedXsn> memory = new LinkedHashMap<Integer, CachedXsn>(16, 0.75f, true);
+
+	private static long memoryBytes = 0;
+
+	/**
+	 * Writes the data of the given xsn to the given stream. The data comes from memory or disk if
+	 * it is cached there, otherwise it is read from the database once and cached.
+	 *
+	 * @param xsn the id and form of the current xsn
+	 * @param out the stream to write to
+	 * @return false if the xsn no longer exists in the database
+	 * @throws IOException if the data can't be cached or written
+	 */
+	public static boolean write(FormEntryXsnMetadata xsn, OutputStream out) throws IOException {
+		Integer formId = xsn.getFormId();
+		Integer xsnId = xsn.getFormEntryXsnId();
+
+		// the data is written outside the lock, a slow client must not block other downloads
+		byte[] cachedData = getFromMemory(formId, xsnId);
+		if (cachedData != null) {
+			out.write(cachedData);
+			return true;
+		}
+
+		File file = getCacheFile(formId, xsnId);
+		if (!file.exists()) {
+			if (!load(xsn, file))
+				return false;
+		}
+
+		return writeCacheFile(formId, xsnId, file, out);
+	}
+
+	/**
+	 * Writes the given cache file to the stream, keeping its data in memory if it is small enough.
+	 * If the file has been removed in the meantime by an invalidation the data is read from the
+	 * database instead.
+	 *
+	 * @param formId the form of the xsn
+	 * @param xsnId the xsn held by the file
+	 * @param file the cache file
+	 * @param out the stream to write to
+	 * @return false if the file is gone and the xsn no longer exists in the database
+	 * @should fall back to the database if the cache file is gone
+	 */
+	static boolean writeCacheFile(Integer formId, Integer xsnId, File file, OutputStream out) throws IOException {
+		if (file.length() <= MAX_MEMORY_ENTRY_BYTES) {
+			byte[] data = readFile(file);
+			if (data != null) {
+				put(formId, xsnId, data);
+				out.write(data);
+				return true;
+			}
+			// the file was removed by an invalidation, fall back to the database
+			return Context.getService(FormEntryService.class).writeFormEntryXsnData(xsnId, out);
+		}
+
+		return transfer(file, out) || Context.getService(FormEntryService.class).writeFormEntryXsnData(xsnId, out);
+	}
+
+	/**
+	 * Removes the cached xsn of the given form from memory and disk
+	 *
+	 * @param formId the id of the form whose xsn was created, archived or deleted
+	 * @should remove the xsn from memory and disk
+	 */
+	public static void invalidate(Integer formId) {
+		if (formId == null)
+			return;
+
+		synchronized (memory) {
+			CachedXsn removed = memory.remove(formId);
+			if (removed != null)
+				memoryBytes -= removed.data.length;
+		}
+
+		deleteCacheFiles(formId, null);
+	}
+
+	/**
+	 * Removes all the cached xsns from memory, the files on disk are kept for the next start
+	 */
+	public static void clear() {
+		synchronized (memory) {
+			memory.clear();
+			memoryBytes = 0;
+		}
+	}
+
+	/**
+	 * Copies the xsn data from the database into the given cache file. The data is written to a
+	 * temporary file first so that other threads never see a partial file.
+	 */
+	private static boolean load(FormEntryXsnMetadata xsn, File file) throws IOException {
+		if (log.isDebugEnabled())
+			log.debug("Caching xsn " + xsn.getFormEntryXsnId() + " of form " + xsn.getFormId());
+
+		File tmp = File.createTempFile(file.getName(), ".part", file.getParentFile());
+		boolean found = false;
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			found = Context.getService(FormEntryService.class).writeFormEntryXsnData(xsn.getFormEntryXsnId(), fos);
+			fos.getFD().sync();
+		}
+		finally {
+			fos.close();
+			if (!found)
+				tmp.delete();
+		}
+
+		if (!found)
+			return false;
+
+		// another thread may have cached the same xsn in the meantime, either copy will do
+		if (!tmp.renameTo(file) && !file.exists())
+			throw new IOException("Unable to rename " + tmp.getAbsolutePath() + " to " + file.getAbsolutePath());
+		tmp.delete();
+
+		// drop the files of the form's previous xsns
+		deleteCacheFiles(xsn.getFormId(), file.getName());
+
+		return true;
+	}
+
+	/**
+	 * Sends the given file to the stream without copying it through the java heap
+	 *
+	 * @return false if the file no longer exists
+	 */
+	private static boolean transfer(File file, OutputStream out) throws IOException {
+		FileInputStream in;
+		try {
+			in = new FileInputStream(file);
+		}
+		catch (IOException e) {
+			log.debug("Cached xsn file is gone: " + file.getAbsolutePath(), e);
+			return false;
+		}
+
+		try {
+			FileChannel channel = in.getChannel();
+			WritableByteChannel target = Channels.newChannel(out);
+			long size = channel.size(), position = 0;
+			while (position < size)
+				position += channel.transferTo(position, size - position, target);
+		}
+		finally {
+			in.close();
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the contents of the file or null if it no longer exists
+	 */
+	private static byte[] readFile(File file) throws IOException {
+		FileInputStream in;
+		try {
+			in = new FileInputStream(file);
+		}
+		catch (IOException e) {
+			log.debug("Cached xsn file is gone: " + file.getAbsolutePath(), e);
+			return null;
+		}
+
+		try {
+			return IOUtils.toByteArray(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param formId the form of the xsn
+	 * @param xsnId the id of the xsn
+	 * @return the data of the xsn if it is held in memory, otherwise null
+	 */
+	static byte[] getFromMemory(Integer formId, Integer xsnId) {
+		synchronized (memory) {
+			CachedXsn cached = memory.get(formId);
+			return (cached != null && cached.xsnId.equals(xsnId)) ? cached.data : null;
+		}
+	}
+
+	/**
+	 * Keeps the data of an xsn in memory, dropping the least recently used xsns if the memory
+	 * cache gets too large
+	 *
+	 * @param formId the form of the xsn
+	 * @param xsnId the id of the xsn
+	 * @param data the data of the xsn
+	 * @should drop the least recently used xsns when the memory limit is exceeded
+	 * @should replace the previous xsn of the form
+	 */
+	static void put(Integer formId, Integer xsnId, byte[] data) {
+		CachedXsn cached = new CachedXsn(xsnId, data);
+		synchronized (memory) {
+			CachedXsn previous = memory.put(formId, cached);
+			if (previous != null)
+				memoryBytes -= previous.data.length;
+			memoryBytes += cached.data.length;
+
+			// drop the least recently used xsns until the cache fits again
+			Iterator<CachedXsn> iterator = memory.values().iterator();
+			while (memoryBytes > MAX_MEMORY_BYTES && iterator.hasNext()) {
+				CachedXsn eldest = iterator.next();
+				if (eldest == cached)
+					break;
+				memoryBytes -= eldest.data.length;
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * @param formId the form of the xsn
+	 * @param xsnId the id of the xsn
+	 * @return the file on disk that holds the xsn once it is cached
+	 */
+	static File getCacheFile(Integer formId, Integer xsnId) {
+		File dir = OpenmrsUtil.getDirectoryInApplicationDataDirectory(DISK_CACHE_DIR);
+		return new File(dir, formId + "-" + xsnId + EXTENSION);
+	}
+
+	/**
+	 * Deletes the cache files of the given form
+	 *
+	 * @param formId the form whose files to delete
+	 * @param keep the name of a file not to delete, may be null
+	 */
+	private static void deleteCacheFiles(Integer formId, final String keep) {
+		final String prefix = formId + "-";
+		File dir = OpenmrsUtil.getDirectoryInApplicationDataDirectory(DISK_CACHE_DIR);
+		File[] files = dir.listFiles(new FilenameFilter() {
+
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix) && name.endsWith(EXTENSION) && !name.equals(keep);
+			}
+		});
+
+		if (files != null) {
+			for (File file : files) {
+				if (!file.delete())
+					log.warn("Unable to delete cached xsn file: " + file.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * The data of an xsn along with the id of the xsn
+	 */
+	private static class CachedXsn {
+
+		private Integer xsnId;
+
+		private byte[] data;
+
+		public CachedXsn(Integer xsnId, byte[] data) {
+			this.xsnId = xsnId;
+			this.data = data;
+		}
+	}
+}
@@ -2,6 +2,8 @@ package org.openmrs.module.formentry;
 
 import java.util.Date;
 
+import org.openmrs.User;
+
 public class FormEntryXsnMetadata {
 
 	private Integer formEntryXsnId;
@@ -9,6 +11,8 @@ public class FormEntryXsnMetadata {
 	private Boolean archived = false;
 	private Date dateCreated;
 	private Date dateArchived;
+	private User creator;
+	private String fingerprint;
 
 	public FormEntryXsnMetadata() {
 		// pass
@@ -20,6 +24,8 @@ public class FormEntryXsnMetadata {
 		this.setArchived(xsn.getArchived());
 		this.setDateCreated(xsn.getDateCreated());
 		this.setDateArchived(xsn.getDateArchived());
+		this.setCreator(xsn.getCreator());
+		this.setFingerprint(xsn.getFingerprint());
 	}
 	
 	public Integer getFormEntryXsnId() {
@@ -62,4 +68,20 @@ public class FormEntryXsnMetadata {
 		this.dateArchived = dateArchived;
 	}
 
+	public User getCreator() {
+		return creator;
+	}
+
+	public void setCreator(User creator) {
+		this.creator = creator;
+	}
+
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	public void setFingerprint(String fingerprint) {
+		this.fingerprint = fingerprint;
+	}
+
 }
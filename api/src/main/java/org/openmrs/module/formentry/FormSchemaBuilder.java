@@ -35,11 +35,7 @@ import org.openmrs.util.FormUtil;
 public class FormSchemaBuilder {
 
 	Form form;
-	TreeMap<Integer, TreeSet<FormField>> formStructure;
-	Vector<String> tagList;
-	Vector<ComplexType> schemaSections;
-	Vector<ComplexType> complexTypes;
-	StringBuffer schema;
+	Map<Integer, Concept> concepts;
 
 	/**
 	 * Construct a schema builder for a given form within a given Context
@@ -52,20 +48,40 @@ public class FormSchemaBuilder {
 	}
 
 	/**
-	 * Generates an XML schema from an OpenMRS form definition.
+	 * Construct a schema builder that renders the form with concepts loaded
+	 * ahead of time instead of loading them one field at a time
+	 * 
+	 * @param form
+	 * @param concepts
+	 *            the form's concepts by id, see
+	 *            {@link FormEntryService#getFormConcepts(Form)}
+	 */
+	public FormSchemaBuilder(Form form, Map<Integer, Concept> concepts) {
+		this.form = form;
+		this.concepts = concepts;
+	}
+
+	/**
+	 * Generates an XML schema from an OpenMRS form definition. The builder
+	 * keeps no state between calls, the same builder can generate the schema
+	 * in several threads at once.
 	 * 
 	 * @return schema for form
 	 */
-	public synchronized String getSchema() {
+	public String getSchema() {
 
-		init(); // initialize variables
+		Vector<String> tagList = new Vector<String>();
+		Vector<ComplexType> schemaSections = new Vector<ComplexType>();
+		Vector<ComplexType> complexTypes = new Vector<ComplexType>();
+		StringBuffer schema = new StringBuffer(); // build schema using StringBuffer for
+		// speed
 
 		// Start with form schema header
 		schema.append(FormSchemaFragment.header(form));
 
 		// define main form section (top level)
 		schema.append(FormSchemaFragment.startForm());
-		formStructure = FormUtil.getFormStructure(form);
+		TreeMap<Integer, TreeSet<FormField>> formStructure = FormUtil.getFormStructure(form);
 		for (FormField section : formStructure.get(0)) {
 			String sectionName = FormUtil.getXmlToken(section.getField()
 					.getName());
@@ -83,7 +99,8 @@ public class FormSchemaBuilder {
 		// render sections
 		TreeSet<FormField> section = formStructure.get(0);
 		while (section != null) {
-			section = renderSection(section);
+			section = renderSection(section, formStructure, tagList,
+					schemaSections, complexTypes, schema);
 		}
 
 		// render element definitions (types)
@@ -93,7 +110,7 @@ public class FormSchemaBuilder {
 			boolean required = complexType.isRequired();
 			if (field.getFieldType().getFieldTypeId().equals(
 					FormEntryConstants.FIELD_TYPE_CONCEPT)) {
-				Concept concept = field.getConcept();
+				Concept concept = getConcept(field.getConcept());
 				ConceptDatatype datatype = concept.getDatatype();
 				if (FormEntryConstants.simpleDatatypes.containsKey(datatype
 						.getHl7Abbreviation()))
@@ -103,8 +120,7 @@ public class FormSchemaBuilder {
 							required, Context.getLocale()));
 				else if (datatype.getHl7Abbreviation().equals(
 						FormEntryConstants.HL7_NUMERIC)) {
-					ConceptNumeric conceptNumeric = Context.getConceptService()
-							.getConceptNumeric(concept.getConceptId());
+					ConceptNumeric conceptNumeric = getConceptNumeric(concept);
 					schema.append(FormSchemaFragment.numericConcept(token,
 							conceptNumeric, required, Context.getLocale()));
 				} else if (datatype.getHl7Abbreviation().equals(
@@ -139,29 +155,29 @@ public class FormSchemaBuilder {
 		return schema.toString();
 	}
 
-	/**
-	 * Initialize global variables
-	 */
-	private void init() {
-		tagList = new Vector<String>();
-		schemaSections = new Vector<ComplexType>();
-		complexTypes = new Vector<ComplexType>();
-		schema = new StringBuffer(); // build schema using StringBuffer for
-		// speed
-	}
-
 	/**
 	 * Render a section of the schema
 	 * 
 	 * @param section
 	 *            a sequence of <code>FormField</code>s
-	 *
+	 * @param formStructure
+	 *            the structure of the form
+	 * @param tagList
+	 *            the tags used so far
+	 * @param schemaSections
+	 *            the section types found so far
+	 * @param complexTypes
+	 *            the field types found so far, rendered after the sections
+	 * @param schema
 	 *            the java.util.StringBuffer used for generating output
 	 * @return a list of any elements encountered within the current section
 	 *         that have children of their own (and, therefore, need subsequent
 	 *         processing); otherwise, <code>null</code>.
 	 */
-	private TreeSet<FormField> renderSection(TreeSet<FormField> section) {
+	private TreeSet<FormField> renderSection(TreeSet<FormField> section,
+			TreeMap<Integer, TreeSet<FormField>> formStructure,
+			Vector<String> tagList, Vector<ComplexType> schemaSections,
+			Vector<ComplexType> complexTypes, StringBuffer schema) {
 		TreeSet<FormField> subSectionList = null;
 		for (FormField sectionFormField : section) {
 			ComplexType sectionType = ComplexType.getComplexType(formStructure,
@@ -193,7 +209,8 @@ public class FormSchemaBuilder {
 								tagList);
 						elemTypeTag = ct.getToken();
 					} else
-						elemTypeTag = getNewTypeTag(subSectionFormField);
+						elemTypeTag = getNewTypeTag(subSectionFormField,
+								formStructure, complexTypes, tagList);
 					if (subSectionFormField.getField().getFieldType()
 							.getFieldTypeId().equals(
 									FormEntryConstants.FIELD_TYPE_DATABASE)) {
@@ -248,7 +265,8 @@ public class FormSchemaBuilder {
 			schema.append("  </xs:sequence>\n");
 			if (sectionFormField.getField().getFieldType().getFieldTypeId()
 					.equals(FormEntryConstants.FIELD_TYPE_CONCEPT)) {
-				Concept concept = sectionFormField.getField().getConcept();
+				Concept concept = getConcept(sectionFormField.getField()
+						.getConcept());
 
 				schema
 						.append("  <xs:attribute name=\"openmrs_concept\" type=\"xs:string\" use=\"required\" fixed=\""
@@ -264,6 +282,34 @@ public class FormSchemaBuilder {
 		return subSectionList;
 	}
 
+	/**
+	 * Returns the prefetched copy of a concept, if there is one
+	 * 
+	 * @param concept
+	 *            the concept of a field
+	 * @return the prefetched concept or the given one
+	 */
+	private Concept getConcept(Concept concept) {
+		if (concepts != null && concepts.containsKey(concept.getConceptId()))
+			return concepts.get(concept.getConceptId());
+		return concept;
+	}
+
+	/**
+	 * Returns the numeric version of a concept, without a query if it was
+	 * prefetched
+	 * 
+	 * @param concept
+	 *            a concept with the numeric datatype
+	 * @return the concept numeric
+	 */
+	private ConceptNumeric getConceptNumeric(Concept concept) {
+		if (concept instanceof ConceptNumeric)
+			return (ConceptNumeric) concept;
+		return Context.getConceptService().getConceptNumeric(
+				concept.getConceptId());
+	}
+
 	/**
 	 * Returns an appropriate representation of a maximum occurence for an XML
 	 * schema.
@@ -287,9 +333,17 @@ public class FormSchemaBuilder {
 	 * 
 	 * @param f
 	 *            <code>FormField</code> from which to derive type
+	 * @param formStructure
+	 *            the structure of the form
+	 * @param complexTypes
+	 *            the field types found so far
+	 * @param tagList
+	 *            the tags used so far
 	 * @return unique tag name for datatype of given <code>FormField</code>
 	 */
-	private String getNewTypeTag(FormField f) {
+	private String getNewTypeTag(FormField f,
+			TreeMap<Integer, TreeSet<FormField>> formStructure,
+			Vector<ComplexType> complexTypes, Vector<String> tagList) {
 		if (f.getField().getFieldType().getFieldTypeId().equals(
 				FormEntryConstants.FIELD_TYPE_CONCEPT)) {
 			ComplexType ct = new ComplexType(formStructure, f);
@@ -0,0 +1,86 @@
+package org.openmrs.module.formentry;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.apache.commons.collections.ExtendedProperties;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.resource.Resource;
+import org.apache.velocity.runtime.resource.loader.ResourceLoader;
+import org.openmrs.Form;
+import org.openmrs.api.context.Context;
+
+/**
+ * Velocity resource loader that reads the templates of forms from their template form resource,
+ * so that velocity can parse them into {@link org.apache.velocity.Template}s that are kept by
+ * {@link FormEntryTemplateCache}. Resources are named by {@link #getResourceName(Form)}. <br/>
+ * <br/>
+ * The templates are only loaded when a form is not in the cache or its template changed,
+ * velocity itself doesn't cache or check them.
+ */
+public class FormTemplateResourceLoader extends ResourceLoader {
+
+	private static final String RESOURCE_NAME_PREFIX = "formentry-template-";
+
+	/**
+	 * @param form the form whose template to load
+	 * @return the name of the form's template for this loader
+	 */
+	public static String getResourceName(Form form) {
+		return RESOURCE_NAME_PREFIX + form.getFormId();
+	}
+
+	/**
+	 * @see org.apache.velocity.runtime.resource.loader.ResourceLoader#init(org.apache.commons.collections.ExtendedProperties)
+	 */
+	@Override
+	public void init(ExtendedProperties configuration) {
+		// nothing to configure
+	}
+
+	/**
+	 * @see org.apache.velocity.runtime.resource.loader.ResourceLoader#getResourceStream(java.lang.String)
+	 */
+	@Override
+	public InputStream getResourceStream(String source) throws ResourceNotFoundException {
+		if (source == null || !source.startsWith(RESOURCE_NAME_PREFIX))
+			throw new ResourceNotFoundException("Not a form template: " + source);
+
+		Form form;
+		try {
+			form = Context.getFormService().getForm(Integer.valueOf(source.substring(RESOURCE_NAME_PREFIX.length())));
+		}
+		catch (NumberFormatException e) {
+			throw new ResourceNotFoundException("Not a form template: " + source);
+		}
+
+		String template = (form == null) ? null : FormEntryUtil.getFormTemplate(form);
+		if (template == null)
+			throw new ResourceNotFoundException("No template found for form: " + source);
+
+		try {
+			return new ByteArrayInputStream(template.getBytes("UTF-8"));
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new ResourceNotFoundException(e.getMessage());
+		}
+	}
+
+	/**
+	 * @see org.apache.velocity.runtime.resource.loader.ResourceLoader#isSourceModified(org.apache.velocity.runtime.resource.Resource)
+	 */
+	@Override
+	public boolean isSourceModified(Resource resource) {
+		// FormEntryTemplateCache checks the version of the template resource instead
+		return false;
+	}
+
+	/**
+	 * @see org.apache.velocity.runtime.resource.loader.ResourceLoader#getLastModified(org.apache.velocity.runtime.resource.Resource)
+	 */
+	@Override
+	public long getLastModified(Resource resource) {
+		return 0;
+	}
+}
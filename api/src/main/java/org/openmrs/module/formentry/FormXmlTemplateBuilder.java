@@ -2,7 +2,6 @@ package org.openmrs.module.formentry;
 
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -11,19 +10,15 @@ import java.util.Vector;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
 import org.apache.velocity.app.event.EventCartridge;
-import org.apache.velocity.runtime.RuntimeConstants;
-import org.apache.velocity.runtime.log.CommonsLogLogChute;
 import org.openmrs.Concept;
 import org.openmrs.ConceptAnswer;
 import org.openmrs.Drug;
-import org.openmrs.Encounter;
 import org.openmrs.Field;
 import org.openmrs.Form;
 import org.openmrs.FormField;
-import org.openmrs.GlobalProperty;
 import org.openmrs.Patient;
 import org.openmrs.Relationship;
 import org.openmrs.User;
@@ -33,16 +28,16 @@ import org.openmrs.util.VelocityExceptionHandler;
 import org.springframework.util.StringUtils;
 
 /**
- * XML template builder for OpenMRS forms.
+ * XML template builder for OpenMRS forms. The builder keeps no state between
+ * calls, the same builder can render templates in several threads at once.
  */
 public class FormXmlTemplateBuilder {
 
 	protected final Log log = LogFactory.getLog(getClass());
 	
-	private VelocityEngine ve;
-	
 	Form form;
 	String url;
+	Map<Integer, Concept> concepts;
 
 	/**
 	 * Construct an XML template builder for generating patient-based templates
@@ -60,10 +55,25 @@ public class FormXmlTemplateBuilder {
 		this.form = form;
 		this.url = url;
 	}
-	
-	public synchronized String getXmlTemplate(Patient patient) {
-		initializeVelocity();
 
+	/**
+	 * Construct an XML template builder that renders the form with concepts
+	 * loaded ahead of time instead of loading them one field at a time
+	 * 
+	 * @param form
+	 *            OpenMRS form for which template(s) will be made
+	 * @param url
+	 *            url location of InfoPath form (.xsn file)
+	 * @param concepts
+	 *            the form's concepts by id, see
+	 *            {@link FormEntryService#getFormConcepts(Form)}
+	 */
+	public FormXmlTemplateBuilder(Form form, String url, Map<Integer, Concept> concepts) {
+		this(form, url);
+		this.concepts = concepts;
+	}
+	
+	public String getXmlTemplate(Patient patient) {
 		VelocityContext velocityContext = new VelocityContext();
 
 		if (patient != null) {
@@ -84,19 +94,13 @@ public class FormXmlTemplateBuilder {
 			velocityContext.put("date", new SimpleDateFormat("yyyyMMdd"));
 			velocityContext.put("time", new SimpleDateFormat("HH:mm:ss"));
 			
-			List<Encounter> encounters = Context.getEncounterService().getEncountersByPatientId(patient.getPatientId(), false);
-			velocityContext.put("patientEncounters", encounters);
+			// only loaded if the template uses them
+			velocityContext.put("patientEncounters", new PrefillEncounterList(patient));
 			
 			List<Relationship> relationships = Context.getPersonService().getRelationshipsByPerson(patient);
 			velocityContext.put("relationships", relationships);
 			
-			String prefix = Context.getAdministrationService().getGlobalProperty(FormEntryConstants.FORMENTRY_GP_PREFIX_LOOKUP, "");
-			List<GlobalProperty> globalPropertiesByPrefix = Context.getAdministrationService().getGlobalPropertiesByPrefix(prefix);
-			Map<String, String> mapByPrefix = new HashMap<String, String>();
-			for (GlobalProperty gp : globalPropertiesByPrefix) {
-				mapByPrefix.put(gp.getProperty(), gp.getPropertyValue());
-			}
-			velocityContext.put("globalProperties", mapByPrefix);
+			velocityContext.put("globalProperties", FormEntryConfiguration.getFormGlobalProperties());
 		}
 		
 		// adding the error handler for velocity
@@ -107,7 +111,12 @@ public class FormXmlTemplateBuilder {
 		String template = null;
 		try {
 			StringWriter w = new StringWriter();
-			ve.evaluate(velocityContext, w, this.getClass().getName(), FormEntryUtil.getFormTemplate(form));
+			Template parsed = FormEntryTemplateCache.getTemplate(form);
+			if (parsed != null)
+				parsed.merge(velocityContext, w);
+			else
+				FormEntryTemplateCache.getVelocityEngine().evaluate(velocityContext, w, this.getClass().getName(),
+				    FormEntryUtil.getFormTemplate(form));
 			template = w.toString();
 		} catch (Exception e) {
 			log.error("Error evaluating default values for form "
@@ -116,28 +125,6 @@ public class FormXmlTemplateBuilder {
 		return template;
 	}
 	
-	/**
-	 * A utility method to initialize Velocity. This could be
-	 * called in the constructor, but putting it in a separate
-	 * method like this allows for late-initialization only
-	 * when someone actually uses this servlet.
-	 */
-	private void initializeVelocity() {
-		if (ve == null) {
-			ve = new VelocityEngine();
-
-			ve.setProperty( RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS,
-				"org.apache.velocity.runtime.log.CommonsLogLogChute" );
-			ve.setProperty(CommonsLogLogChute.LOGCHUTE_COMMONS_LOG_NAME, 
-					"formentry_velocity");
-			try {
-				ve.init();
-			} catch (Exception e) {
-				log.error("velocity init failed", e);
-			}		
-		}
-	}
-
 	/**
 	 * Returns the XML template for a form
 	 * 
@@ -145,7 +132,7 @@ public class FormXmlTemplateBuilder {
 	 *            if true, field defaults are inserted into the template
 	 * @return XML template for a form
 	 */
-	public synchronized String getXmlTemplate(boolean includeDefaultScripts) {
+	public String getXmlTemplate(boolean includeDefaultScripts) {
 		StringBuffer xml = new StringBuffer();
 
 		xml.append(FormXmlTemplateFragment.header(form, url));
@@ -236,6 +223,8 @@ public class FormXmlTemplateBuilder {
 			} else if (fieldTypeId
 					.equals(FormEntryConstants.FIELD_TYPE_CONCEPT)) {
 				Concept concept = field.getConcept();
+				if (concepts != null && concepts.containsKey(concept.getConceptId()))
+					concept = concepts.get(concept.getConceptId());
 				String hl7Abbr = concept.getDatatype().getHl7Abbreviation();
 				xml.append(" openmrs_concept=\"");
                 // TODO make this use UUID / mapping instead of 99DCT
@@ -0,0 +1,110 @@
+package org.openmrs.module.formentry;
+
+import java.util.List;
+
+import javax.xml.transform.TransformerFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Form;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+
+/**
+ * Compiles the xslts of all published forms into the {@link FormEntryXsltCache} in a daemon thread
+ * when the module starts, so that the first queue items processed after a restart don't have to
+ * wait for their form's xslt to be compiled. The daemon thread has its own session and runs as the
+ * daemon user (see {@link org.openmrs.api.context.Daemon})
+ */
+public class PrecompileFormXsltsThread implements Runnable {
+
+	private Log log = LogFactory.getLog(this.getClass());
+
+	/**
+	 * The number of times to try to get the forms before giving up
+	 */
+	private static final int MAX_ATTEMPTS = 12;
+
+	/**
+	 * Whether or not activity should continue with this thread
+	 */
+	protected static volatile boolean active = false;
+
+	/**
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+
+		log.debug("Running the precompile form xslts thread");
+
+		try {
+			// wait for 30 seconds (waiting for the rest of the module to be loaded)
+			pause(30000);
+
+			int attempts = 0;
+			while (isActive() && attempts++ < MAX_ATTEMPTS) {
+				try {
+					FormEntryService service = (FormEntryService) Context.getService(FormEntryService.class);
+					precompileXslts(service.getFormsWithXsn(true));
+					break;
+				}
+				catch (APIException api) {
+					// the service may not be available yet
+					log.debug("Unable to precompile form xslts", api);
+					pause(5000);
+				}
+			}
+		}
+		finally {
+			setActive(false);
+		}
+	}
+
+	/**
+	 * Compiles the xslt of each of the given forms, stopping early if this thread is deactivated
+	 *
+	 * @param forms the forms whose xslts to compile
+	 */
+	private void precompileXslts(List<Form> forms) {
+		TransformerFactory transformerFactory = FormEntryXsltCache.newTransformerFactory();
+		int compiled = 0;
+		for (Form form : forms) {
+			if (!isActive())
+				break;
+
+			try {
+				FormEntryXsltCache.getTemplates(form, transformerFactory);
+				compiled++;
+			}
+			catch (Exception e) {
+				// the form's queue items will report the problem when they are processed
+				log.warn("Unable to compile the xslt for form: " + form.getFormId(), e);
+			}
+		}
+
+		log.info("Precompiled the xslts of " + compiled + " forms");
+	}
+
+	private void pause(long millis) {
+		try {
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e) {
+			log.error("Sleeping was interrupted", e);
+		}
+	}
+
+	/**
+	 * @return the active
+	 */
+	public static boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * @param active the active to set
+	 */
+	public static void setActive(boolean a) {
+		active = a;
+	}
+}
@@ -0,0 +1,62 @@
+package org.openmrs.module.formentry;
+
+import java.util.AbstractList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Encounter;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+
+/**
+ * The encounters of a patient made available to form templates as <code>$patientEncounters</code>
+ * when a prefilled form is downloaded. Most templates don't use them, so the encounters are only
+ * loaded when the template first touches the list, and then only the most recent
+ * {@link FormEntryConfiguration#getPrefillMaxEncounters()} of them, newest first.
+ */
+public class PrefillEncounterList extends AbstractList<Encounter> {
+
+	private static Log log = LogFactory.getLog(PrefillEncounterList.class);
+
+	private final Patient patient;
+
+	private List<Encounter> encounters = null;
+
+	/**
+	 * @param patient the patient whose encounters to list
+	 */
+	public PrefillEncounterList(Patient patient) {
+		this.patient = patient;
+	}
+
+	/**
+	 * @see java.util.AbstractList#get(int)
+	 */
+	@Override
+	public Encounter get(int index) {
+		return getEncounters().get(index);
+	}
+
+	/**
+	 * @see java.util.AbstractCollection#size()
+	 * @should not load the encounters until the list is used
+	 * @should load at most the configured number of encounters once
+	 */
+	@Override
+	public int size() {
+		return getEncounters().size();
+	}
+
+	private List<Encounter> getEncounters() {
+		if (encounters == null) {
+			int max = FormEntryConfiguration.getPrefillMaxEncounters();
+			encounters = Context.getService(FormEntryService.class).getLatestEncounters(patient, max);
+			if (log.isDebugEnabled())
+				log.debug("Loaded " + encounters.size() + " encounters (at most " + max + ") of patient "
+				        + patient.getPatientId());
+		}
+
+		return encounters;
+	}
+}
@@ -42,6 +42,7 @@ public class ProcessFormEntryQueueTask extends AbstractTask {
 	public void execute() {
 		Context.openSession();
 		log.debug("Processing form entry queue ... ");
+		FormEntryMetrics.taskRunStarted();
 		try {
 			if (Context.isAuthenticated() == false)
 				authenticate();
@@ -50,6 +51,7 @@ public class ProcessFormEntryQueueTask extends AbstractTask {
 			log.error("Error running form entry queue task", e);
 			throw e;
 		} finally {
+			FormEntryMetrics.taskRunFinished();
 			Context.closeSession();
 		}
 	}
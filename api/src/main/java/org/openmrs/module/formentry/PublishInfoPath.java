@@ -80,9 +80,15 @@ public class PublishInfoPath {
 	private static Log log = LogFactory.getLog(PublishInfoPath.class);
 	
 	/**
-	 * A FilenameFilter for xsl files.
+	 * A FilenameFilter for xsl files. It has no state, so it is shared by forms published at the
+	 * same time.
 	 */
-	private static FilenameFilter xslFilenameFilter = null;
+	private static final FilenameFilter xslFilenameFilter = new FilenameFilter() {
+		
+		public boolean accept(File dir, String name) {
+			return name.endsWith("xsl");
+		}
+	};
 	
 	/**
 	 * Regex pattern for an unqualified (lacking concept name) concept specification in HL7 format.
@@ -153,6 +159,20 @@ public class PublishInfoPath {
 	 * @param form the OpenMRS form with which the given XSN is to be associated
 	 */
 	public static Form publishXSN(InputStream inputStream, Form form) throws IOException {
+		return publishXSN(inputStream, form, null);
+	}
+	
+	/**
+	 * Publishes an xsn that was rebuilt from the form, see
+	 * {@link #publishXSN(InputStream, Form)}
+	 * 
+	 * @param inputStream inputStream from which XSN may be read
+	 * @param form the OpenMRS form with which the given XSN is to be associated
+	 * @param fingerprint the fingerprint of the generated parts of the xsn, null if they weren't
+	 *            generated from the form
+	 * @see FormEntryUtil#getXSNFingerprint(Form)
+	 */
+	public static Form publishXSN(InputStream inputStream, Form form, String fingerprint) throws IOException {
 		
 		File tempDir = FormEntryUtil.createTempDirectory("UPLOADEDXSN");
 		
@@ -164,7 +184,7 @@ public class PublishInfoPath {
 		// copy the uploaded file over to the temp file system file
 		OpenmrsUtil.copyFile(inputStream, new FileOutputStream(filesystemXSN));
 		
-		form = publishXSN(filesystemXSN.getAbsolutePath(), form);
+		form = publishXSN(filesystemXSN.getAbsolutePath(), form, fingerprint);
 		
 		OpenmrsUtil.deleteDirectory(tempDir);
 		
@@ -181,6 +201,17 @@ public class PublishInfoPath {
 	 * @param form the OpenMRS form with which the given XSN is to be associated
 	 */
 	public static Form publishXSN(String xsnFilePath, Form form) throws IOException {
+		return publishXSN(xsnFilePath, form, null);
+	}
+	
+	/**
+	 * @param xsnFilePath full path to the XSN file
+	 * @param form the form add this xsn to. If null, form is determined from xsn
+	 * @param fingerprint the fingerprint of the generated parts of the xsn, null if they weren't
+	 *            generated from the form
+	 * @see #publishXSN(String, Form)
+	 */
+	public static Form publishXSN(String xsnFilePath, Form form, String fingerprint) throws IOException {
 		
 		if (log.isDebugEnabled())
 			log.debug("publishing xsn at: " + xsnFilePath);
@@ -265,15 +296,14 @@ public class PublishInfoPath {
 		updateXslFiles(tempDir);
 		
 		// make cab
-		// creates the file in the same temp directory
-		FormEntryUtil.makeCab(tempDir, tempDir.getAbsolutePath(), outputFilename);
+		// built in memory, there is no need to write it to the temp directory
+		byte[] xsnContents = FormEntryUtil.makeCab(tempDir);
 		
 		// create and save the formentry xsn file
-		File newXsnFile = FormEntryUtil.findFile(tempDir, outputFilename);
-		byte[] xsnContents = OpenmrsUtil.getFileAsBytes(newXsnFile);
 		FormEntryXsn xsn = new FormEntryXsn();
 		xsn.setForm(form);
 		xsn.setXsnData(xsnContents);
+		xsn.setFingerprint(fingerprint);
 		FormEntryService formEntryService = (FormEntryService) Context.getService(FormEntryService.class);
 		formEntryService.createFormEntryXsn(xsn);
 		
@@ -831,19 +861,9 @@ public class PublishInfoPath {
 	}
 	
 	/**
-	 * Lazy factory method of xslFilenameFilter.
-	 * 
-	 * @return
+	 * @return the FilenameFilter for *.xsl files
 	 */
 	private static FilenameFilter getXslFilenameFilter() {
-		if (xslFilenameFilter == null) {
-			xslFilenameFilter = new FilenameFilter() {
-				
-				public boolean accept(File dir, String name) {
-					return name.endsWith("xsl");
-				}
-			};
-		}
 		return xslFilenameFilter;
 	}
 }
@@ -0,0 +1,278 @@
+package org.openmrs.module.formentry;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Form;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+
+/**
+ * Rebuilds the xsns of all the forms that have one in the background (see
+ * {@link FormEntryUtil#rebuildXSN(Form)}). The forms are rebuilt by at most {@link #MAX_WORKERS}
+ * daemon threads, each with its own session and user context, so the workers don't share the
+ * context of the user who started the job. One failing form doesn't stop the others. <br/>
+ * <br/>
+ * Only one job runs at a time, the last {@link #MAX_JOBS} jobs are kept so that their progress and
+ * failures can be looked up by id.
+ */
+public class RebuildXsnsJob {
+
+	private static Log log = LogFactory.getLog(RebuildXsnsJob.class);
+
+	/**
+	 * The maximum number of forms rebuilt at the same time
+	 */
+	public static final int MAX_WORKERS = 4;
+
+	/**
+	 * The number of jobs kept for looking up their progress
+	 */
+	public static final int MAX_JOBS = 10;
+
+	private static final Map<String, RebuildXsnsJob> jobs = new LinkedHashMap<String, RebuildXsnsJob>() {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, RebuildXsnsJob> eldest) {
+			return size() > MAX_JOBS;
+		}
+	};
+
+	private final String id = UUID.randomUUID().toString();
+
+	private final List<Integer> formIds;
+
+	private final AtomicInteger nextForm = new AtomicInteger();
+
+	private final AtomicInteger runningWorkers = new AtomicInteger();
+
+	private final Date started = new Date();
+
+	private volatile Date finished = null;
+
+	private volatile boolean cancelled = false;
+
+	private final AtomicInteger succeeded = new AtomicInteger();
+
+	private final AtomicInteger unchanged = new AtomicInteger();
+
+	private final Map<Integer, String> failures = new LinkedHashMap<Integer, String>();
+
+	private RebuildXsnsJob(List<Integer> formIds) {
+		this.formIds = formIds;
+	}
+
+	/**
+	 * Starts rebuilding the xsns of all the non retired forms that have one, unless a rebuild is
+	 * already running. The forms are rebuilt as the daemon user. If the module has no daemon token
+	 * the forms are rebuilt by a single worker in the current thread, before this method returns.
+	 *
+	 * @return the started job, or the job that was already running
+	 * @should rebuild every form and count the rebuilt, unchanged and failed ones
+	 */
+	public static RebuildXsnsJob start() {
+		RebuildXsnsJob job;
+		synchronized (RebuildXsnsJob.class) {
+			for (RebuildXsnsJob running : jobs.values()) {
+				if (!running.isFinished())
+					return running;
+			}
+
+			// the forms are loaded again by the workers, each in its own session
+			Set<Integer> formIds = new LinkedHashSet<Integer>();
+			for (Form form : Context.getService(FormEntryService.class).getFormsWithXsn(false)) {
+				if (!form.isRetired())
+					formIds.add(form.getFormId());
+			}
+
+			job = new RebuildXsnsJob(new ArrayList<Integer>(formIds));
+			jobs.put(job.getId(), job);
+		}
+
+		log.info("Started rebuilding " + job.getTotal() + " xsns, job " + job.getId());
+		job.startWorkers();
+		return job;
+	}
+
+	/**
+	 * @param id the id of a job
+	 * @return the job or null if there is no (recent) job with the given id
+	 */
+	public static synchronized RebuildXsnsJob getJob(String id) {
+		return jobs.get(id);
+	}
+
+	/**
+	 * Stops all running jobs after the forms being rebuilt at the moment, e.g. when the module is
+	 * stopped
+	 *
+	 * @should stop the running jobs after the forms being rebuilt
+	 */
+	public static synchronized void cancelAll() {
+		for (RebuildXsnsJob job : jobs.values())
+			job.cancelled = true;
+	}
+
+	/**
+	 * Starts the workers in daemon threads, each of which opens its own session as the daemon
+	 * user. The job is finished when the last worker stops.
+	 */
+	private void startWorkers() {
+		int workerCount = Math.max(1, Math.min(MAX_WORKERS, formIds.size()));
+
+		DaemonToken daemonToken = FormEntryActivator.getDaemonToken();
+		if (daemonToken == null) {
+			log.warn("No daemon token for the formentry module, rebuilding the xsns in the current thread");
+			runningWorkers.set(1);
+			new Worker().run();
+			return;
+		}
+
+		runningWorkers.set(workerCount);
+		for (int i = 0; i < workerCount; i++)
+			Daemon.runInDaemonThread(new Worker(), daemonToken);
+	}
+
+	/**
+	 * Rebuilds forms until all of them have been taken by a worker or the job is cancelled
+	 */
+	private class Worker implements Runnable {
+
+		/**
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run() {
+			try {
+				Integer formId;
+				while (!cancelled && (formId = nextFormId()) != null)
+					rebuild(formId);
+			}
+			finally {
+				if (runningWorkers.decrementAndGet() == 0) {
+					finished = new Date();
+					log.info("Rebuilt " + succeeded.get() + " xsns, " + unchanged.get() + " were up to date, "
+					        + getFailures().size() + " failed, job " + id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the next form to rebuild, or null if every form has been taken by a worker
+	 */
+	private Integer nextFormId() {
+		int index = nextForm.getAndIncrement();
+		return index < formIds.size() ? formIds.get(index) : null;
+	}
+
+	/**
+	 * Rebuilds the xsn of one form. The session is cleared afterwards, so the objects loaded for one
+	 * form are neither kept nor reused for the next.
+	 *
+	 * @param formId the form to rebuild
+	 */
+	private void rebuild(Integer formId) {
+		try {
+			Form form = Context.getFormService().getForm(formId);
+			if (FormEntryUtil.rebuildXSN(form))
+				succeeded.incrementAndGet();
+			else
+				unchanged.incrementAndGet();
+		}
+		catch (Exception e) {
+			log.warn("Unable to rebuild the xsn of form " + formId, e);
+			synchronized (failures) {
+				failures.put(formId, e.getMessage() == null ? e.getClass().getName() : e.getMessage());
+			}
+		}
+		finally {
+			Context.clearSession();
+		}
+	}
+
+	/**
+	 * @return the id to look this job up with
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return the number of forms to rebuild
+	 */
+	public int getTotal() {
+		return formIds.size();
+	}
+
+	/**
+	 * @return the number of forms rebuilt so far, successfully or not
+	 */
+	public int getCompleted() {
+		synchronized (failures) {
+			return succeeded.get() + unchanged.get() + failures.size();
+		}
+	}
+
+	/**
+	 * @return the number of forms rebuilt successfully so far
+	 */
+	public int getSucceeded() {
+		return succeeded.get();
+	}
+
+	/**
+	 * @return the number of forms whose xsn was already up to date so far
+	 */
+	public int getUnchanged() {
+		return unchanged.get();
+	}
+
+	/**
+	 * @return the forms that couldn't be rebuilt so far, form id to error message
+	 */
+	public Map<Integer, String> getFailures() {
+		synchronized (failures) {
+			return new LinkedHashMap<Integer, String>(failures);
+		}
+	}
+
+	/**
+	 * @return when the job was started
+	 */
+	public Date getStarted() {
+		return started;
+	}
+
+	/**
+	 * @return when the job finished, null while it is running
+	 */
+	public Date getFinished() {
+		return finished;
+	}
+
+	/**
+	 * @return true if all the forms have been rebuilt, or the job was cancelled and has stopped
+	 */
+	public boolean isFinished() {
+		return finished != null;
+	}
+
+	/**
+	 * @return true if the job was cancelled before all the forms were rebuilt
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
@@ -0,0 +1,62 @@
+package org.openmrs.module.formentry.advice;
+
+import java.lang.reflect.Method;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.Field;
+import org.openmrs.Form;
+import org.openmrs.FormField;
+import org.openmrs.module.formentry.FormEntrySchemaCache;
+import org.springframework.aop.AfterReturningAdvice;
+
+/**
+ * This class evicts the cached schemas of forms (see {@link FormEntrySchemaCache}) when the form,
+ * its fields or the concepts it uses are saved or removed through the FormService or the
+ * ConceptService
+ */
+public class InvalidateSchemaCacheAdvice implements AfterReturningAdvice {
+
+	private Log log = LogFactory.getLog(this.getClass());
+
+	private static final String[] MODIFYING_METHOD_PREFIXES = { "save", "update", "purge", "delete", "retire",
+	        "unretire", "void", "unvoid" };
+
+	/**
+	 * @see org.springframework.aop.AfterReturningAdvice#afterReturning(java.lang.Object,
+	 *      java.lang.reflect.Method, java.lang.Object[], java.lang.Object)
+	 * @should evict the schemas of the forms that use a saved concept
+	 * @should keep the schemas of the forms that don't use a saved concept
+	 */
+	public void afterReturning(Object returnValue, Method m, Object[] args, Object target) throws Throwable {
+		if (args == null || args.length == 0 || !isModifying(m.getName()))
+			return;
+
+		Object arg = args[0];
+		if (arg instanceof Form) {
+			FormEntrySchemaCache.invalidate((Form) arg);
+		} else if (arg instanceof FormField) {
+			FormEntrySchemaCache.invalidate(((FormField) arg).getForm());
+		} else if (arg instanceof Field) {
+			// fields are shared by forms
+			FormEntrySchemaCache.clear();
+		} else if (arg instanceof Concept) {
+			FormEntrySchemaCache.invalidate((Concept) arg);
+		} else {
+			return;
+		}
+
+		if (log.isDebugEnabled())
+			log.debug("Invalidated cached schemas after method: " + m.getName());
+	}
+
+	private boolean isModifying(String methodName) {
+		for (String prefix : MODIFYING_METHOD_PREFIXES) {
+			if (methodName.startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+
+}
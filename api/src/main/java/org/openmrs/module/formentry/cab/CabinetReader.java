@@ -0,0 +1,411 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry.cab;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads the files out of a Microsoft cabinet (.cab) file, which is what an InfoPath xsn is. Only
+ * uncompressed and MSZIP compressed folders are supported, which is what InfoPath and makecab
+ * produce by default, an {@link UnsupportedCabinetException} is thrown for anything else (Quantum,
+ * LZX, cabinets spanning several files) so that the caller can fall back to an external tool. <br/>
+ * <br/>
+ * The cabinet is read into memory as a whole, xsns are small. Usage:
+ *
+ * <pre>
+ * Map&lt;String, byte[]&gt; files = new CabinetReader(xsnData).getFiles();
+ * </pre>
+ *
+ * @see <a href="http://msdn.microsoft.com/en-us/library/bb417343.aspx">Microsoft Cabinet Format</a>
+ */
+public class CabinetReader {
+
+	static final int SIGNATURE = 0x4643534D; // "MSCF"
+
+	static final int FLAG_PREV_CABINET = 0x0001;
+
+	static final int FLAG_NEXT_CABINET = 0x0002;
+
+	static final int FLAG_RESERVE_PRESENT = 0x0004;
+
+	static final int COMPRESSION_NONE = 0;
+
+	static final int COMPRESSION_MSZIP = 1;
+
+	static final int ATTRIBUTE_NAME_IS_UTF = 0x80;
+
+	/**
+	 * The largest uncompressed size of a data block, which is also the size of the MSZIP window
+	 */
+	static final int MAX_BLOCK_SIZE = 32768;
+
+	private final byte[] cab;
+
+	private final List<Folder> folders = new ArrayList<Folder>();
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	private int dataReserve = 0;
+
+	/**
+	 * Reads the headers of the given cabinet
+	 *
+	 * @param cabinet the contents of the cabinet file
+	 * @throws IOException if the data is not a cabinet or can't be read
+	 */
+	public CabinetReader(byte[] cabinet) throws IOException {
+		this.cab = cabinet;
+		readHeaders();
+	}
+
+	/**
+	 * Reads the headers of the cabinet in the given stream, the stream is read to the end but not
+	 * closed
+	 *
+	 * @param in the stream to read the cabinet from
+	 * @throws IOException if the data is not a cabinet or can't be read
+	 */
+	public CabinetReader(InputStream in) throws IOException {
+		this(IOUtils.toByteArray(in));
+	}
+
+	/**
+	 * @return the names of the files in the cabinet, in the order they are stored
+	 */
+	public List<String> getFileNames() {
+		List<String> names = new ArrayList<String>(entries.size());
+		for (Entry entry : entries)
+			names.add(entry.name);
+		return names;
+	}
+
+	/**
+	 * Decompresses all the files in the cabinet
+	 *
+	 * @return map from file name (with '\' separators, as stored) to file contents, in the order
+	 *         the files are stored
+	 * @throws IOException if the cabinet is corrupt or uses an unsupported compression
+	 */
+	public Map<String, byte[]> getFiles() throws IOException {
+		Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+		for (int i = 0; i < folders.size(); i++) {
+			byte[] data = decompress(folders.get(i));
+			for (Entry entry : entries) {
+				if (entry.folder != i)
+					continue;
+
+				if (entry.offset + entry.size > data.length)
+					throw new IOException("File " + entry.name + " extends past the end of its cabinet folder");
+
+				byte[] contents = new byte[entry.size];
+				System.arraycopy(data, entry.offset, contents, 0, entry.size);
+				files.put(entry.name, contents);
+			}
+		}
+
+		return files;
+	}
+
+	/**
+	 * Decompresses all the files in the cabinet into the given directory, recreating any
+	 * subdirectories stored in the file names
+	 *
+	 * @param dir the directory to write the files to
+	 * @throws IOException if the cabinet is corrupt, uses an unsupported compression or a file
+	 *             can't be written
+	 */
+	public void extractTo(File dir) throws IOException {
+		for (Map.Entry<String, byte[]> file : getFiles().entrySet()) {
+			File target = getTargetFile(dir, file.getKey());
+			File parent = target.getParentFile();
+			if (!parent.exists() && !parent.mkdirs())
+				throw new IOException("Unable to create directory " + parent.getAbsolutePath());
+
+			OutputStream out = new FileOutputStream(target);
+			try {
+				out.write(file.getValue());
+			}
+			finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads the cabinet header and the folder and file entries
+	 */
+	private void readHeaders() throws IOException {
+		if (cab.length < 36 || readInt(0) != SIGNATURE)
+			throw new IOException("Not a cabinet file");
+
+		int filesOffset = readInt(16);
+		int folderCount = readShort(26);
+		int fileCount = readShort(28);
+		int flags = readShort(30);
+
+		if ((flags & (FLAG_PREV_CABINET | FLAG_NEXT_CABINET)) != 0)
+			throw new UnsupportedCabinetException("Cabinets spanning several files are not supported");
+
+		int pos = 36;
+		int folderReserve = 0;
+		if ((flags & FLAG_RESERVE_PRESENT) != 0) {
+			int headerReserve = readShort(pos);
+			folderReserve = readByte(pos + 2);
+			dataReserve = readByte(pos + 3);
+			pos += 4 + headerReserve;
+		}
+
+		for (int i = 0; i < folderCount; i++) {
+			Folder folder = new Folder();
+			folder.dataOffset = readInt(pos);
+			folder.blockCount = readShort(pos + 4);
+			folder.compression = readShort(pos + 6) & 0x000F;
+			folders.add(folder);
+			pos += 8 + folderReserve;
+		}
+
+		pos = filesOffset;
+		for (int i = 0; i < fileCount; i++) {
+			Entry entry = new Entry();
+			entry.size = readInt(pos);
+			entry.offset = readInt(pos + 4);
+			entry.folder = readShort(pos + 8);
+			int attributes = readShort(pos + 14);
+			pos += 16;
+
+			int end = pos;
+			while (end < cab.length && cab[end] != 0)
+				end++;
+			if (end == cab.length)
+				throw new IOException("Unterminated file name in cabinet");
+
+			entry.name = decodeName(pos, end - pos, (attributes & ATTRIBUTE_NAME_IS_UTF) != 0);
+			pos = end + 1;
+
+			if (entry.folder >= folders.size() || entry.size < 0 || entry.offset < 0)
+				throw new UnsupportedCabinetException("File " + entry.name + " is continued from or to another cabinet");
+
+			entries.add(entry);
+		}
+	}
+
+	/**
+	 * Decompresses all the data blocks of a folder into one array
+	 */
+	private byte[] decompress(Folder folder) throws IOException {
+		if (folder.compression != COMPRESSION_NONE && folder.compression != COMPRESSION_MSZIP)
+			throw new UnsupportedCabinetException("Unsupported cabinet compression type: " + folder.compression);
+
+		// each block holds at most 32K, so the total size can be worked out before decompressing
+		int pos = folder.dataOffset;
+		int total = 0;
+		for (int i = 0; i < folder.blockCount; i++) {
+			checkBounds(pos, 8 + dataReserve);
+			total += readShort(pos + 6);
+			pos += 8 + dataReserve + readShort(pos + 4);
+		}
+
+		byte[] out = new byte[total];
+		Inflater inflater = (folder.compression == COMPRESSION_MSZIP) ? new Inflater(true) : null;
+		try {
+			pos = folder.dataOffset;
+			int written = 0;
+			for (int i = 0; i < folder.blockCount; i++) {
+				int checksum = readInt(pos);
+				int compressedSize = readShort(pos + 4);
+				int uncompressedSize = readShort(pos + 6);
+				int dataStart = pos + 8 + dataReserve;
+				checkBounds(dataStart, compressedSize);
+
+				if (checksum != 0 && checksum != blockChecksum(cab, dataStart, compressedSize, pos + 4))
+					throw new IOException("Bad checksum in cabinet data block " + i);
+
+				if (inflater == null) {
+					if (compressedSize != uncompressedSize)
+						throw new IOException("Bad size of uncompressed cabinet data block " + i);
+					System.arraycopy(cab, dataStart, out, written, uncompressedSize);
+				} else {
+					inflateBlock(inflater, dataStart, compressedSize, out, written, uncompressedSize);
+				}
+
+				written += uncompressedSize;
+				pos = dataStart + compressedSize;
+			}
+		}
+		finally {
+			if (inflater != null)
+				inflater.end();
+		}
+
+		return out;
+	}
+
+	/**
+	 * Inflates one MSZIP block. Each block is a "CK" signature followed by a complete deflate
+	 * stream, which may refer back to the last 32K of the previous blocks' output.
+	 */
+	private void inflateBlock(Inflater inflater, int start, int length, byte[] out, int outOffset, int outLength)
+	        throws IOException {
+		if (length < 2 || cab[start] != 'C' || cab[start + 1] != 'K')
+			throw new IOException("Missing MSZIP signature in cabinet data block");
+
+		inflater.reset();
+		if (outOffset > 0) {
+			int window = Math.min(outOffset, MAX_BLOCK_SIZE);
+			inflater.setDictionary(out, outOffset - window, window);
+		}
+
+		// a raw inflater needs an extra byte after the deflate data
+		byte[] in = new byte[length - 1];
+		System.arraycopy(cab, start + 2, in, 0, length - 2);
+		inflater.setInput(in);
+
+		try {
+			int inflated = 0;
+			while (inflated < outLength && !inflater.finished()) {
+				int n = inflater.inflate(out, outOffset + inflated, outLength - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				inflated += n;
+			}
+
+			if (inflated != outLength)
+				throw new IOException("Bad size of MSZIP cabinet data block, expected " + outLength + " bytes but got "
+				        + inflated);
+		}
+		catch (DataFormatException e) {
+			throw new IOException("Corrupt MSZIP cabinet data block: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Resolves a file name from the cabinet against the extraction directory, refusing names that
+	 * would end up outside of it
+	 */
+	private File getTargetFile(File dir, String name) throws IOException {
+		File target = dir;
+		for (String part : name.split("[\\\\/]")) {
+			if (part.length() == 0 || part.equals("."))
+				continue;
+			if (part.equals("..") || part.indexOf(':') >= 0)
+				throw new IOException("Illegal file name in cabinet: " + name);
+			target = new File(target, part);
+		}
+
+		if (target.equals(dir))
+			throw new IOException("Illegal file name in cabinet: " + name);
+
+		return target;
+	}
+
+	private String decodeName(int start, int length, boolean utf) throws UnsupportedEncodingException {
+		return new String(cab, start, length, utf ? "UTF-8" : "ISO-8859-1");
+	}
+
+	private void checkBounds(int start, int length) throws IOException {
+		if (start < 0 || length < 0 || start + length > cab.length)
+			throw new IOException("Unexpected end of cabinet file");
+	}
+
+	private int readByte(int pos) throws IOException {
+		checkBounds(pos, 1);
+		return cab[pos] & 0xFF;
+	}
+
+	private int readShort(int pos) throws IOException {
+		checkBounds(pos, 2);
+		return (cab[pos] & 0xFF) | ((cab[pos + 1] & 0xFF) << 8);
+	}
+
+	private int readInt(int pos) throws IOException {
+		checkBounds(pos, 4);
+		return (cab[pos] & 0xFF) | ((cab[pos + 1] & 0xFF) << 8) | ((cab[pos + 2] & 0xFF) << 16)
+		        | ((cab[pos + 3] & 0xFF) << 24);
+	}
+
+	/**
+	 * Computes the checksum of a data block: the data itself, followed by the 4 bytes holding the
+	 * block's compressed and uncompressed sizes
+	 *
+	 * @param buf the buffer holding the block
+	 * @param start the start of the block's data
+	 * @param length the length of the block's data
+	 * @param sizesOffset the offset of the block's size fields
+	 * @return the checksum
+	 */
+	static int blockChecksum(byte[] buf, int start, int length, int sizesOffset) {
+		return checksum(buf, sizesOffset, 4, checksum(buf, start, length, 0));
+	}
+
+	private static int checksum(byte[] buf, int start, int length, int seed) {
+		int sum = seed;
+		int pos = start;
+		for (int n = length / 4; n > 0; n--, pos += 4)
+			sum ^= (buf[pos] & 0xFF) | ((buf[pos + 1] & 0xFF) << 8) | ((buf[pos + 2] & 0xFF) << 16)
+			        | ((buf[pos + 3] & 0xFF) << 24);
+
+		int last = 0;
+		switch (length % 4) {
+			case 3:
+				last |= (buf[pos++] & 0xFF) << 16;
+			case 2:
+				last |= (buf[pos++] & 0xFF) << 8;
+			case 1:
+				last |= buf[pos] & 0xFF;
+			default:
+				break;
+		}
+
+		return sum ^ last;
+	}
+
+	/**
+	 * A folder is a run of data blocks compressed as one stream
+	 */
+	private static class Folder {
+
+		private int dataOffset;
+
+		private int blockCount;
+
+		private int compression;
+	}
+
+	/**
+	 * A file stored at an offset in a folder's uncompressed data
+	 */
+	private static class Entry {
+
+		private String name;
+
+		private int size;
+
+		private int offset;
+
+		private int folder;
+	}
+}
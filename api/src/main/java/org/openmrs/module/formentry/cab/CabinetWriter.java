@@ -0,0 +1,272 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry.cab;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Builds a Microsoft cabinet (.cab) file, e.g. an InfoPath xsn, from named byte buffers. All the
+ * files are stored in a single folder, either MSZIP compressed (like makecab and lcab do) or, in
+ * the fast mode, uncompressed. <br/>
+ * <br/>
+ * Every file is given the same fixed date, so the same files added in the same order always give
+ * the same cabinet. Usage:
+ *
+ * <pre>
+ * CabinetWriter writer = new CabinetWriter();
+ * writer.addFile(&quot;manifest.xsf&quot;, manifest);
+ * writer.addFile(&quot;FormEntry.xsd&quot;, schema);
+ * byte[] xsn = writer.toByteArray();
+ * </pre>
+ *
+ * @see CabinetReader
+ */
+public class CabinetWriter {
+
+	/**
+	 * The date stored for every file, 1980-01-01 in DOS format
+	 */
+	private static final int FIXED_DATE = (0 << 9) | (1 << 5) | 1;
+
+	private static final int FIXED_TIME = 0;
+
+	private static final int ATTRIBUTE_ARCHIVE = 0x20;
+
+	private static final int HEADER_SIZE = 36;
+
+	private static final int FOLDER_SIZE = 8;
+
+	private static final int FILE_SIZE = 16;
+
+	private static final int DATA_SIZE = 8;
+
+	private final boolean compress;
+
+	private final List<String> names = new ArrayList<String>();
+
+	private final List<byte[]> contents = new ArrayList<byte[]>();
+
+	private int totalSize = 0;
+
+	/**
+	 * Creates a writer that MSZIP compresses the files
+	 */
+	public CabinetWriter() {
+		this(true);
+	}
+
+	/**
+	 * @param compress true to MSZIP compress the files, false to store them uncompressed
+	 */
+	public CabinetWriter(boolean compress) {
+		this.compress = compress;
+	}
+
+	/**
+	 * Adds a file to the cabinet
+	 *
+	 * @param name the name of the file in the cabinet, subdirectories are separated with '\'
+	 * @param data the contents of the file
+	 * @throws IOException if the cabinet would get too large
+	 */
+	public void addFile(String name, byte[] data) throws IOException {
+		if (names.size() == 0xFFFF)
+			throw new IOException("Too many files for one cabinet");
+		if ((long) totalSize + data.length > Integer.MAX_VALUE / 2)
+			throw new IOException("Too much data for one cabinet");
+
+		names.add(name);
+		contents.add(data);
+		totalSize += data.length;
+	}
+
+	/**
+	 * @return the cabinet holding the files added so far
+	 * @throws IOException if the cabinet can't be built
+	 */
+	public byte[] toByteArray() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(compress ? totalSize / 3 + 1024 : totalSize + 1024);
+		write(out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes the cabinet holding the files added so far, the stream is not closed
+	 *
+	 * @param out the stream to write the cabinet to
+	 * @throws IOException if the cabinet can't be built or written
+	 */
+	public void write(OutputStream out) throws IOException {
+		List<byte[]> blocks = buildDataBlocks();
+
+		List<byte[]> encodedNames = new ArrayList<byte[]>(names.size());
+		int filesSize = 0;
+		for (String name : names) {
+			byte[] encoded = name.getBytes("UTF-8");
+			encodedNames.add(encoded);
+			filesSize += FILE_SIZE + encoded.length + 1;
+		}
+
+		int filesOffset = HEADER_SIZE + FOLDER_SIZE;
+		int dataOffset = filesOffset + filesSize;
+		int cabinetSize = dataOffset;
+		for (byte[] block : blocks)
+			cabinetSize += block.length;
+
+		ByteArrayOutputStream headers = new ByteArrayOutputStream(dataOffset);
+
+		// CFHEADER
+		writeInt(headers, CabinetReader.SIGNATURE);
+		writeInt(headers, 0);
+		writeInt(headers, cabinetSize);
+		writeInt(headers, 0);
+		writeInt(headers, filesOffset);
+		writeInt(headers, 0);
+		headers.write(3); // version 1.3
+		headers.write(1);
+		writeShort(headers, 1); // folders
+		writeShort(headers, names.size());
+		writeShort(headers, 0); // flags
+		writeShort(headers, 0); // set id
+		writeShort(headers, 0); // cabinet number in the set
+
+		// CFFOLDER
+		writeInt(headers, dataOffset);
+		writeShort(headers, blocks.size());
+		writeShort(headers, compress ? CabinetReader.COMPRESSION_MSZIP : CabinetReader.COMPRESSION_NONE);
+
+		// CFFILE
+		int offset = 0;
+		for (int i = 0; i < names.size(); i++) {
+			byte[] encoded = encodedNames.get(i);
+			writeInt(headers, contents.get(i).length);
+			writeInt(headers, offset);
+			writeShort(headers, 0); // folder
+			writeShort(headers, FIXED_DATE);
+			writeShort(headers, FIXED_TIME);
+			writeShort(headers, ATTRIBUTE_ARCHIVE | (isAscii(encoded) ? 0 : CabinetReader.ATTRIBUTE_NAME_IS_UTF));
+			headers.write(encoded);
+			headers.write(0);
+			offset += contents.get(i).length;
+		}
+
+		headers.writeTo(out);
+		for (byte[] block : blocks)
+			out.write(block);
+	}
+
+	/**
+	 * Splits the contents of all the files into 32K blocks, compressing them if needed
+	 *
+	 * @return the complete CFDATA entries
+	 */
+	private List<byte[]> buildDataBlocks() throws IOException {
+		byte[] data = new byte[totalSize];
+		int pos = 0;
+		for (byte[] file : contents) {
+			System.arraycopy(file, 0, data, pos, file.length);
+			pos += file.length;
+		}
+
+		List<byte[]> blocks = new ArrayList<byte[]>();
+		Deflater deflater = compress ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+		try {
+			byte[] buffer = new byte[CabinetReader.MAX_BLOCK_SIZE + 1024];
+			for (int start = 0; start < totalSize; start += CabinetReader.MAX_BLOCK_SIZE) {
+				int length = Math.min(CabinetReader.MAX_BLOCK_SIZE, totalSize - start);
+				if (deflater == null)
+					blocks.add(buildDataBlock(data, start, length, length));
+				else {
+					int compressedLength = deflateBlock(deflater, data, start, length, buffer);
+					blocks.add(buildDataBlock(buffer, 0, compressedLength, length));
+				}
+			}
+		}
+		finally {
+			if (deflater != null)
+				deflater.end();
+		}
+
+		return blocks;
+	}
+
+	/**
+	 * Compresses one MSZIP block into the buffer: a "CK" signature followed by a complete deflate
+	 * stream that may refer back to the last 32K of the data before the block
+	 *
+	 * @return the length of the compressed block
+	 */
+	private int deflateBlock(Deflater deflater, byte[] data, int start, int length, byte[] buffer) throws IOException {
+		deflater.reset();
+		if (start > 0) {
+			int window = Math.min(start, CabinetReader.MAX_BLOCK_SIZE);
+			deflater.setDictionary(data, start - window, window);
+		}
+		deflater.setInput(data, start, length);
+		deflater.finish();
+
+		buffer[0] = 'C';
+		buffer[1] = 'K';
+		int compressedLength = 2;
+		while (!deflater.finished()) {
+			if (compressedLength == buffer.length)
+				throw new IOException("MSZIP block larger than expected");
+			compressedLength += deflater.deflate(buffer, compressedLength, buffer.length - compressedLength);
+		}
+
+		return compressedLength;
+	}
+
+	/**
+	 * Builds a CFDATA entry, including its checksum
+	 */
+	private byte[] buildDataBlock(byte[] buf, int start, int length, int uncompressedLength) {
+		byte[] block = new byte[DATA_SIZE + length];
+		block[4] = (byte) length;
+		block[5] = (byte) (length >>> 8);
+		block[6] = (byte) uncompressedLength;
+		block[7] = (byte) (uncompressedLength >>> 8);
+		System.arraycopy(buf, start, block, DATA_SIZE, length);
+
+		int checksum = CabinetReader.blockChecksum(block, DATA_SIZE, length, 4);
+		block[0] = (byte) checksum;
+		block[1] = (byte) (checksum >>> 8);
+		block[2] = (byte) (checksum >>> 16);
+		block[3] = (byte) (checksum >>> 24);
+		return block;
+	}
+
+	private static boolean isAscii(byte[] encoded) {
+		for (byte b : encoded) {
+			if (b < 0)
+				return false;
+		}
+		return true;
+	}
+
+	private static void writeShort(ByteArrayOutputStream out, int value) {
+		out.write(value & 0xFF);
+		out.write((value >>> 8) & 0xFF);
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value) {
+		writeShort(out, value);
+		writeShort(out, value >>> 16);
+	}
+}
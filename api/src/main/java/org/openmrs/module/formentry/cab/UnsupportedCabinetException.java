@@ -0,0 +1,29 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry.cab;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a valid cabinet uses a feature that {@link CabinetReader} doesn't support, such as
+ * LZX compression or spanning several cabinet files
+ */
+public class UnsupportedCabinetException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public UnsupportedCabinetException(String message) {
+		super(message);
+	}
+}
@@ -13,10 +13,18 @@
  */
 package org.openmrs.module.formentry.db;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
 import org.openmrs.Form;
+import org.openmrs.Patient;
+import org.openmrs.User;
 import org.openmrs.api.db.DAOException;
 import org.openmrs.module.formentry.FormEntryError;
 import org.openmrs.module.formentry.FormEntryXsn;
@@ -126,4 +134,75 @@ public interface FormEntryDAO {
      * @return the Form Entry XSN
      */
     public FormEntryXsn getFormEntryXsnById(Integer xsnId);
+    
+    /**
+     * get the id and creation date of the current (non-archived) xsn for a form without loading
+     * the xsn data
+     * 
+     * @param formId the id of the form
+     * @return the xsn metadata or null if the form has no xsn
+     */
+    public FormEntryXsnMetadata getFormEntryXsnMetadata(Integer formId);
+    
+    /**
+     * get the metadata of a Form Entry XSN by its id without loading the xsn data
+     * 
+     * @param xsnId the id of the Form Entry XSN
+     * @return the xsn metadata or null if there is no xsn with the given id
+     */
+    public FormEntryXsnMetadata getFormEntryXsnMetadataById(Integer xsnId);
+    
+    /**
+     * archive all the non-archived xsns of a form with one update, without loading them
+     * 
+     * @param form the form whose xsns to archive
+     * @param archivedBy the user archiving the xsns
+     * @param dateArchived the date the xsns were archived
+     * @return the number of xsns archived
+     */
+    public int archiveFormEntryXsns(Form form, User archivedBy, Date dateArchived);
+    
+    /**
+     * delete a Form Entry XSN without loading it
+     * 
+     * @param xsnId the id of the Form Entry XSN to delete
+     */
+    public void deleteFormEntryXsnById(Integer xsnId);
+    
+    /**
+     * write the data of a Form Entry XSN to the given stream, reading it from the database as a
+     * binary stream instead of loading the Form Entry XSN (the driver may still buffer it)
+     * 
+     * @param xsnId the id of the Form Entry XSN
+     * @param out the stream to write to
+     * @return false if there is no Form Entry XSN with the given id
+     * @throws IOException if writing to the stream fails
+     */
+    public boolean writeFormEntryXsnData(Integer xsnId, OutputStream out) throws IOException;
+    
+    /**
+     * load the concepts of the fields of a form, with their datatypes, answers and names, and the
+     * concepts of their answers with their names, in a few queries
+     * 
+     * @param form the form whose concepts to load
+     * @return the loaded concepts by concept id
+     */
+    public Map<Integer, Concept> getFormConcepts(Form form);
+    
+    /**
+     * get the most recent non-voided encounters of a patient, newest first
+     * 
+     * @param patient the patient whose encounters to get
+     * @param maxResults the maximum number of encounters to get, 0 for all
+     * @return the encounters
+     */
+    public List<Encounter> getLatestEncounters(Patient patient, int maxResults);
+    
+    /**
+     * get the patients with the given ids, in as few queries as possible
+     * 
+     * @param patientIds the ids of the patients to get
+     * @return the patients by patient id
+     */
+    public Map<Integer, Patient> getPatients(Collection<Integer> patientIds);
 }
@@ -15,6 +15,8 @@ package org.openmrs.module.formentry.db.hibernate;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -22,22 +24,36 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
 import org.hibernate.Query;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.openmrs.api.db.hibernate.DbSessionFactory;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.jdbc.Work;
+import org.hibernate.proxy.HibernateProxy;
 import org.openmrs.util.DatabaseUpdater;
 import java.sql.Connection;
 import org.openmrs.util.DatabaseUtil;
+import org.openmrs.Concept;
+import org.openmrs.ConceptAnswer;
+import org.openmrs.Encounter;
 import org.openmrs.Form;
+import org.openmrs.FormField;
+import org.openmrs.Patient;
+import org.openmrs.User;
 import org.openmrs.api.APIException;
 import org.openmrs.api.FormService;
 import org.openmrs.api.context.Context;
@@ -58,6 +74,16 @@ public class HibernateFormEntryDAO implements FormEntryDAO {
 
 	protected final Log log = LogFactory.getLog(getClass());
 	
+	/**
+	 * Selects the metadata columns of xsns, everything but the xsn data
+	 */
+	private static final String XSN_METADATA_SELECT = "select formEntryXsnId, form.formId, archived, dateCreated, dateArchived, creator, fingerprint from FormEntryXsn";
+	
+	/**
+	 * The maximum number of ids in one "in" clause
+	 */
+	private static final int MAX_IN_LIST_SIZE = 1000;
+	
 	/**
 	 * Hibernate session factory
 	 */
@@ -499,7 +525,8 @@ public class HibernateFormEntryDAO implements FormEntryDAO {
 						Projections.property("form.id")).add(
 						Projections.property("archived")).add(
 						Projections.property("dateCreated")).add(
-						Projections.property("dateArchived")))
+						Projections.property("dateArchived")).add(
+						Projections.property("creator")))
 				.addOrder(Order.asc("form.id"))
 				.addOrder(Order.asc("archived"))
 				.addOrder(Order.desc("dateCreated"));
@@ -515,6 +542,7 @@ public class HibernateFormEntryDAO implements FormEntryDAO {
 				md.setArchived((Boolean) metadata[2]);
 				md.setDateCreated((Date) metadata[3]);
 				md.setDateArchived((Date) metadata[4]);
+				md.setCreator((User) metadata[5]);
 				res.add(md);
 			} catch (NumberFormatException ex) {
 				throw new APIException("could not cast " + metadata[0] + " to an Integer.", ex);
@@ -539,4 +567,220 @@ public class HibernateFormEntryDAO implements FormEntryDAO {
 				FormEntryXsn.class, xsnId);
 	}
 
+	/**
+	 * @see org.openmrs.module.formentry.db.FormEntryDAO#getFormEntryXsnMetadata(Integer)
+	 */
+	public FormEntryXsnMetadata getFormEntryXsnMetadata(Integer formId) {
+		Query query = sessionFactory.getCurrentSession().createQuery(
+			XSN_METADATA_SELECT + " where form.formId = :formId and archived = 0 order by formEntryXsnId desc");
+		query.setParameter("formId", formId);
+		query.setMaxResults(1); // same xsn as getFormEntryXsn(Integer) returns
+		
+		return toFormEntryXsnMetadata((Object[]) query.uniqueResult());
+	}
+
+	/**
+	 * @see org.openmrs.module.formentry.db.FormEntryDAO#getFormEntryXsnMetadataById(Integer)
+	 */
+	public FormEntryXsnMetadata getFormEntryXsnMetadataById(Integer xsnId) {
+		Query query = sessionFactory.getCurrentSession().createQuery(XSN_METADATA_SELECT + " where formEntryXsnId = :xsnId");
+		query.setParameter("xsnId", xsnId);
+		
+		return toFormEntryXsnMetadata((Object[]) query.uniqueResult());
+	}
+
+	/**
+	 * @see org.openmrs.module.formentry.db.FormEntryDAO#archiveFormEntryXsns(Form, User, Date)
+	 */
+	public int archiveFormEntryXsns(Form form, User archivedBy, Date dateArchived) {
+		Query query = sessionFactory.getCurrentSession().createQuery(
+			"update FormEntryXsn set archived = :archived, archivedBy = :archivedBy, dateArchived = :dateArchived where form = :form and archived = :notArchived");
+		query.setParameter("archived", true);
+		query.setParameter("archivedBy", archivedBy);
+		query.setParameter("dateArchived", dateArchived);
+		query.setParameter("form", form);
+		query.setParameter("notArchived", false);
+		
+		return query.executeUpdate();
+	}
+
+	/**
+	 * @see org.openmrs.module.formentry.db.FormEntryDAO#deleteFormEntryXsnById(Integer)
+	 */
+	public void deleteFormEntryXsnById(Integer xsnId) {
+		Query query = sessionFactory.getCurrentSession().createQuery("delete from FormEntryXsn where formEntryXsnId = :xsnId");
+		query.setParameter("xsnId", xsnId);
+		
+		query.executeUpdate();
+	}
+
+	/**
+	 * Converts a row selected with {@link #XSN_METADATA_SELECT}
+	 * 
+	 * @param row the selected columns, may be null
+	 * @return the metadata or null if the row is null
+	 */
+	private FormEntryXsnMetadata toFormEntryXsnMetadata(Object[] row) {
+		if (row == null)
+			return null;
+		
+		FormEntryXsnMetadata md = new FormEntryXsnMetadata();
+		md.setFormEntryXsnId((Integer) row[0]);
+		md.setFormId((Integer) row[1]);
+		md.setArchived((Boolean) row[2]);
+		md.setDateCreated((Date) row[3]);
+		md.setDateArchived((Date) row[4]);
+		md.setCreator((User) row[5]);
+		md.setFingerprint((String) row[6]);
+		return md;
+	}
+
+	/**
+	 * @see org.openmrs.module.formentry.db.FormEntryDAO#writeFormEntryXsnData(Integer, OutputStream)
+	 */
+	public boolean writeFormEntryXsnData(final Integer xsnId, final OutputStream out) throws IOException {
+		// the data isn't mapped into an entity, but whether it is streamed from the database depends 
+		// on the jdbc driver: MySQL Connector/J reads the whole blob into memory when the row is 
+		// fetched, so it is held in the heap once while being written. FormEntryXsnCache keeps 
+		// this to once per xsn rather than once per download
+		// work can only throw sql exceptions, so the write errors are passed out through here
+		final IOException[] writeError = new IOException[1];
+		final boolean[] found = new boolean[1];
+		
+		sessionFactory.getCurrentSession().doWork(new Work() {
+			
+			public void execute(Connection connection) throws SQLException {
+				PreparedStatement ps = connection.prepareStatement("select xsn_data from formentry_xsn where formentry_xsn_id = ?");
+				try {
+					ps.setInt(1, xsnId);
+					ResultSet rs = ps.executeQuery();
+					try {
+						if (rs.next()) {
+							found[0] = true;
+							InputStream in = rs.getBinaryStream(1);
+							if (in != null) {
+								try {
+									IOUtils.copy(in, out);
+								}
+								finally {
+									in.close();
+								}
+							}
+						}
+					}
+					finally {
+						rs.close();
+					}
+				}
+				catch (IOException e) {
+					writeError[0] = e;
+				}
+				finally {
+					ps.close();
+				}
+			}
+		});
+		
+		if (writeError[0] != null)
+			throw writeError[0];
+		
+		return found[0];
+	}
+
+	/**
+	 * @see org.openmrs.module.formentry.db.FormEntryDAO#getFormConcepts(Form)
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, Concept> getFormConcepts(Form form) {
+		Map<Integer, Concept> concepts = new HashMap<Integer, Concept>();
+		if (form.getFormId() == null)
+			return concepts;
+		
+		Session session = sessionFactory.getCurrentSession();
+		
+		// the form's fields along with their concepts
+		List<FormField> formFields = session.createQuery(
+		    "select ff from FormField ff join fetch ff.field f left join fetch f.concept where ff.form = :form")
+		        .setParameter("form", form).list();
+		
+		Set<Integer> fieldConceptIds = new LinkedHashSet<Integer>();
+		for (FormField formField : formFields) {
+			if (formField.getField().getConcept() != null)
+				fieldConceptIds.add(formField.getField().getConcept().getConceptId());
+		}
+		
+		// the datatypes and answers of the field concepts, numerics come back as ConceptNumerics
+		Set<Integer> allConceptIds = new LinkedHashSet<Integer>(fieldConceptIds);
+		for (List<Integer> ids : partition(fieldConceptIds)) {
+			List<Concept> loaded = session.createQuery(
+			    "select distinct c from Concept c join fetch c.datatype left join fetch c.answers a "
+			            + "left join fetch a.answerDrug where c.conceptId in (:ids)").setParameterList("ids", ids).list();
+			for (Concept concept : loaded) {
+				for (ConceptAnswer answer : concept.getAnswers(true))
+					allConceptIds.add(answer.getAnswerConcept().getConceptId());
+			}
+		}
+		
+		// the names of the field concepts and of their answers
+		for (List<Integer> ids : partition(allConceptIds)) {
+			List<Concept> loaded = session.createQuery(
+			    "select distinct c from Concept c left join fetch c.names where c.conceptId in (:ids)")
+			        .setParameterList("ids", ids).list();
+			for (Concept concept : loaded) {
+				if (concept instanceof HibernateProxy)
+					concept = (Concept) ((HibernateProxy) concept).getHibernateLazyInitializer().getImplementation();
+				concepts.put(concept.getConceptId(), concept);
+			}
+		}
+		
+		return concepts;
+	}
+	
+	/**
+	 * @see org.openmrs.module.formentry.db.FormEntryDAO#getLatestEncounters(Patient, int)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Encounter> getLatestEncounters(Patient patient, int maxResults) {
+		Query query = sessionFactory.getCurrentSession().createQuery(
+		    "from Encounter e where e.patient = :patient and e.voided = :voided order by e.encounterDatetime desc");
+		query.setParameter("patient", patient);
+		query.setParameter("voided", false);
+		if (maxResults > 0)
+			query.setMaxResults(maxResults);
+		
+		return query.list();
+	}
+	
+	/**
+	 * @see org.openmrs.module.formentry.db.FormEntryDAO#getPatients(Collection)
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, Patient> getPatients(Collection<Integer> patientIds) {
+		Map<Integer, Patient> patients = new HashMap<Integer, Patient>();
+		for (List<Integer> ids : partition(patientIds)) {
+			List<Patient> loaded = sessionFactory.getCurrentSession().createQuery(
+			    "from Patient p where p.patientId in (:ids)").setParameterList("ids", ids).list();
+			for (Patient patient : loaded)
+				patients.put(patient.getPatientId(), patient);
+		}
+		
+		return patients;
+	}
+	
+	/**
+	 * Splits the ids into lists that are small enough for an "in" clause
+	 */
+	private List<List<Integer>> partition(Collection<Integer> ids) {
+		List<List<Integer>> partitions = new ArrayList<List<Integer>>();
+		List<Integer> partition = null;
+		for (Integer id : ids) {
+			if (partition == null || partition.size() == MAX_IN_LIST_SIZE) {
+				partition = new ArrayList<Integer>(MAX_IN_LIST_SIZE);
+				partitions.add(partition);
+			}
+			partition.add(id);
+		}
+		return partitions;
+	}
+
 }
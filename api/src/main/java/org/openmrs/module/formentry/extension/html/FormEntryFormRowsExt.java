@@ -10,7 +10,7 @@ import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.Extension;
 import org.openmrs.module.formentry.FormEntryService;
-import org.openmrs.module.formentry.FormEntryXsn;
+import org.openmrs.module.formentry.FormEntryXsnMetadata;
 import org.openmrs.module.web.extension.TableRowExt;
 import org.openmrs.util.InsertedOrderComparator;
 
@@ -39,7 +39,7 @@ public class FormEntryFormRowsExt extends TableRowExt {
 		try {
 			// if we're not the basic form or a new form
 			if (formId != null && !formId.equals("1")) {
-				FormEntryXsn xsn = ((FormEntryService)Context.getService(FormEntryService.class)).getFormEntryXsn(Integer.valueOf(formId));
+				FormEntryXsnMetadata xsn = ((FormEntryService)Context.getService(FormEntryService.class)).getFormEntryXsnMetadata(Integer.valueOf(formId));
 				
 				if (xsn == null)
 					map.put("formentry.xsn.lastModified", " (No XSN) ");
@@ -17,30 +17,40 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
 import org.openmrs.Form;
+import org.openmrs.Patient;
 import org.openmrs.User;
 import org.openmrs.api.APIAuthenticationException;
 import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
+import org.openmrs.hl7.HL7InQueue;
+import org.openmrs.hl7.HL7Service;
 import org.openmrs.module.formentry.FormEntryArchive;
 import org.openmrs.module.formentry.FormEntryConstants;
 import org.openmrs.module.formentry.FormEntryError;
 import org.openmrs.module.formentry.FormEntryException;
+import org.openmrs.module.formentry.FormEntryMetrics;
 import org.openmrs.module.formentry.FormEntryQueue;
+import org.openmrs.module.formentry.FormEntryQueueIndex;
+import org.openmrs.module.formentry.FormEntrySchemaCache;
 import org.openmrs.module.formentry.FormEntryService;
 import org.openmrs.module.formentry.FormEntryUtil;
 import org.openmrs.module.formentry.FormEntryXsn;
+import org.openmrs.module.formentry.FormEntryXsnCache;
 import org.openmrs.module.formentry.FormEntryXsnMetadata;
-import org.openmrs.module.formentry.FormSchemaBuilder;
 import org.openmrs.module.formentry.db.FormEntryDAO;
 import org.openmrs.util.OpenmrsConstants;
 import org.openmrs.util.OpenmrsUtil;
@@ -83,6 +93,7 @@ public class FormEntryServiceImpl implements FormEntryService {
 		    String.valueOf(FormEntryConstants.FORMENTRY_INFOPATH_SUBMIT_PATH));
 		systemVariables.put("FORMENTRY_GP_QUEUE_DIR", FormEntryUtil.getFormEntryQueueDir().getAbsolutePath());
 		systemVariables.put("FORMENTRY_GP_QUEUE_ARCHIVE_DIR", FormEntryUtil.getFormEntryArchiveDir(null).getAbsolutePath());
+		systemVariables.put("FORMENTRY_QUEUE_PROCESSING_DIR", FormEntryUtil.getFormEntryProcessingDir().getAbsolutePath());
 		
 		// the other formentry system variables (the editable ones) are located in global properties
 		
@@ -111,6 +122,9 @@ public class FormEntryServiceImpl implements FormEntryService {
 			writer = new FileWriter(outFile);
 			
 			writer.write(formEntryQueue.getFormData());
+			writer.flush();
+			
+			FormEntryQueueIndex.added(queueDir, outFile.getName());
 		}
 		catch (IOException io) {
 			throw new FormEntryException("Unable to save formentry queue", io);
@@ -158,10 +172,15 @@ public class FormEntryServiceImpl implements FormEntryService {
 			throw new FormEntryException("Unable to load formEntryQueue with empty file system url");
 		
 		File file = new File(formEntryQueue.getFileSystemUrl());
+		File queueDir = FormEntryUtil.getFormEntryQueueDir();
 		
 		if (file.exists()) {
 			file.delete();
 		}
+		
+		// claimed items have already been moved out of the queue directory
+		if (queueDir.equals(file.getParentFile()))
+			FormEntryQueueIndex.removed(queueDir, file.getName());
 	}
 	
 	/**
@@ -170,8 +189,15 @@ public class FormEntryServiceImpl implements FormEntryService {
 	public FormEntryQueue getNextFormEntryQueue() {
 		File queueDir = FormEntryUtil.getFormEntryQueueDir();
 		
-		// return the first queue item
-		for (File file : queueDir.listFiles()) {
+		// return the oldest queue item
+		String fileName;
+		while ((fileName = FormEntryQueueIndex.peek(queueDir)) != null) {
+			File file = new File(queueDir, fileName);
+			if (!file.exists()) {
+				FormEntryQueueIndex.discard(fileName);
+				continue;
+			}
+			
 			FormEntryQueue queueItem = new FormEntryQueue();
 			queueItem.setFileSystemUrl(file.getAbsolutePath());
 			queueItem.setDateCreated(new Date(file.lastModified()));
@@ -181,13 +207,98 @@ public class FormEntryServiceImpl implements FormEntryService {
 		return null;
 	}
 	
+	/**
+	 * @see org.openmrs.module.formentry.FormEntryService#claimNextFormEntryQueue(java.lang.String)
+	 */
+	public FormEntryQueue claimNextFormEntryQueue(String workerName) {
+		File queueDir = FormEntryUtil.getFormEntryQueueDir();
+		File processingDir = FormEntryUtil.getFormEntryProcessingDir(workerName);
+		
+		// each file name is handed out by the index once, the rename can still fail if the 
+		// file was removed from the queue directory behind our back, so we try the next one
+		String fileName;
+		while ((fileName = FormEntryQueueIndex.poll(queueDir)) != null) {
+			File file = new File(queueDir, fileName);
+			File claimedFile = new File(processingDir, fileName);
+			boolean claimed = file.renameTo(claimedFile);
+			FormEntryQueueIndex.removed(queueDir, fileName);
+			
+			if (claimed) {
+				FormEntryQueue queueItem = new FormEntryQueue();
+				queueItem.setFileSystemUrl(claimedFile.getAbsolutePath());
+				queueItem.setDateCreated(new Date(claimedFile.lastModified()));
+				return queueItem;
+			}
+			
+			if (file.exists())
+				log.warn("Unable to claim queue item: " + file.getAbsolutePath());
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * @see org.openmrs.module.formentry.FormEntryService#releaseClaimedFormEntryQueues()
+	 */
+	public void releaseClaimedFormEntryQueues() {
+		File queueDir = FormEntryUtil.getFormEntryQueueDir();
+		
+		File[] workerDirs = FormEntryUtil.getFormEntryProcessingDir().listFiles();
+		if (workerDirs == null)
+			return;
+		
+		for (File workerDir : workerDirs) {
+			File[] claimedFiles = workerDir.listFiles();
+			if (claimedFiles == null)
+				continue;
+			
+			for (File claimedFile : claimedFiles) {
+				if (claimedFile.getName().endsWith(FormEntryConstants.FORMENTRY_QUEUE_SAVED_SUFFIX)) {
+					// its hl7 has been saved, queueing it again would save it twice
+					FormEntryQueue savedItem = new FormEntryQueue();
+					savedItem.setFileSystemUrl(claimedFile.getAbsolutePath());
+					try {
+						archiveFormEntryQueue(savedItem);
+					}
+					catch (FormEntryException e) {
+						log.warn("Unable to archive saved queue item: " + claimedFile.getAbsolutePath(), e);
+					}
+				} else if (!claimedFile.renameTo(new File(queueDir, claimedFile.getName()))) {
+					log.warn("Unable to move claimed queue item back into the queue: " + claimedFile.getAbsolutePath());
+				}
+			}
+		}
+		
+		// the released items are older than anything indexed since they were claimed
+		FormEntryQueueIndex.invalidate();
+	}
+	
+	/**
+	 * @see org.openmrs.module.formentry.FormEntryService#markFormEntryQueueSaved(org.openmrs.module.formentry.FormEntryQueue)
+	 */
+	public void markFormEntryQueueSaved(FormEntryQueue formEntryQueue) {
+		if (formEntryQueue.getFileSystemUrl() == null)
+			return;
+		
+		// only claimed items are put back into the queue, items still in the queue aren't marked
+		File file = new File(formEntryQueue.getFileSystemUrl());
+		if (FormEntryUtil.getFormEntryQueueDir().equals(file.getParentFile()))
+			return;
+		
+		File savedFile = new File(file.getParentFile(), file.getName() + FormEntryConstants.FORMENTRY_QUEUE_SAVED_SUFFIX);
+		if (file.renameTo(savedFile))
+			formEntryQueue.setFileSystemUrl(savedFile.getAbsolutePath());
+		else
+			log.warn("Unable to mark queue item as saved: " + file.getAbsolutePath());
+	}
+	
 	/**
 	 * @see org.openmrs.module.formentry.FormEntryService#getFormEntryQueueSize()
 	 */
 	public Integer getFormEntryQueueSize() {
 		File queueDir = FormEntryUtil.getFormEntryQueueDir();
 		
-		return queueDir.list().length;
+		return FormEntryQueueIndex.size(queueDir);
 	}
 	
 	/**
@@ -198,10 +309,10 @@ public class FormEntryServiceImpl implements FormEntryService {
 		
 		File queueDir = FormEntryUtil.getFormEntryArchiveDir(formEntryArchive.getDateCreated());
 		
-		File outFile = FormEntryUtil.getOutFile(queueDir, formEntryArchive.getDateCreated(), creator);
-		
-		// write the queue's data to the file
+		// write the queue's data to the file, archives are written in parallel so the name is
+		// reserved first
 		try {
+			File outFile = FormEntryUtil.createOutFile(queueDir, formEntryArchive.getDateCreated(), creator);
 			FormEntryUtil.stringToFile(formEntryArchive.getFormData(), outFile);
 		}
 		catch (IOException io) {
@@ -210,6 +321,36 @@ public class FormEntryServiceImpl implements FormEntryService {
 		
 	}
 	
+	/**
+	 * @see org.openmrs.module.formentry.FormEntryService#archiveFormEntryQueue(org.openmrs.module.formentry.FormEntryQueue)
+	 */
+	public void archiveFormEntryQueue(FormEntryQueue formEntryQueue) {
+		if (formEntryQueue.getFileSystemUrl() == null) {
+			// there is no file to move, write the data out to a new archive file
+			createFormEntryArchive(new FormEntryArchive(formEntryQueue));
+			deleteFormEntryQueue(formEntryQueue);
+			return;
+		}
+		
+		File file = new File(formEntryQueue.getFileSystemUrl());
+		File queueDir = FormEntryUtil.getFormEntryQueueDir();
+		
+		Date now = new Date();
+		File archiveDir = FormEntryUtil.getFormEntryArchiveDir(now);
+		
+		try {
+			// reserve the name, queue items are archived in parallel
+			File outFile = FormEntryUtil.createOutFile(archiveDir, now, Context.getAuthenticatedUser());
+			FormEntryUtil.moveFile(file, outFile);
+		}
+		catch (IOException io) {
+			throw new FormEntryException("Unable to move formentry queue item into the archive", io);
+		}
+		
+		if (queueDir.equals(file.getParentFile()))
+			FormEntryQueueIndex.removed(queueDir, file.getName());
+	}
+	
 	/**
 	 * @see org.openmrs.module.formentry.FormEntryService#getFormEntryArchives()
 	 */
@@ -308,7 +449,28 @@ public class FormEntryServiceImpl implements FormEntryService {
 	 * @see org.openmrs.module.formentry.FormEntryService#getSchema(org.openmrs.Form)
 	 */
 	public String getSchema(Form form) {
-		return new FormSchemaBuilder(form).getSchema();
+		return FormEntrySchemaCache.getSchema(form);
+	}
+	
+	/**
+	 * @see org.openmrs.module.formentry.FormEntryService#getFormConcepts(org.openmrs.Form)
+	 */
+	public Map<Integer, Concept> getFormConcepts(Form form) {
+		return getFormEntryDAO().getFormConcepts(form);
+	}
+	
+	/**
+	 * @see org.openmrs.module.formentry.FormEntryService#getLatestEncounters(org.openmrs.Patient, int)
+	 */
+	public List<Encounter> getLatestEncounters(Patient patient, int maxResults) {
+		return getFormEntryDAO().getLatestEncounters(patient, maxResults);
+	}
+	
+	/**
+	 * @see org.openmrs.module.formentry.FormEntryService#getPatients(java.util.Collection)
+	 */
+	public Map<Integer, Patient> getPatients(Collection<Integer> patientIds) {
+		return getFormEntryDAO().getPatients(patientIds);
 	}
 	
 	/**
@@ -318,6 +480,23 @@ public class FormEntryServiceImpl implements FormEntryService {
 		getFormEntryDAO().garbageCollect();
 	}
 	
+	/**
+	 * @see org.openmrs.module.formentry.FormEntryService#getFormEntryMetrics()
+	 */
+	public FormEntryMetrics getFormEntryMetrics() {
+		return FormEntryMetrics.getInstance();
+	}
+	
+	/**
+	 * @see org.openmrs.module.formentry.FormEntryService#saveHL7InQueues(java.util.List)
+	 */
+	public void saveHL7InQueues(List<HL7InQueue> hl7InQueues) {
+		// the hl7 service joins this transaction, so the rows are flushed and committed together
+		HL7Service hl7Service = Context.getHL7Service();
+		for (HL7InQueue hl7InQueue : hl7InQueues)
+			hl7Service.saveHL7InQueue(hl7InQueue);
+	}
+	
 	/**
 	 * @see org.openmrs.module.formentry.FormEntryService#migrateQueueAndArchiveToFilesystem()
 	 */
@@ -334,6 +513,7 @@ public class FormEntryServiceImpl implements FormEntryService {
 		formEntryXsn.setDateArchived(new Date());
 		
 		getFormEntryDAO().updateFormEntryXsn(formEntryXsn);
+		FormEntryXsnCache.invalidate(formEntryXsn.getForm().getFormId());
 	}
 	
 	/**
@@ -341,6 +521,7 @@ public class FormEntryServiceImpl implements FormEntryService {
 	 */
 	public void deleteFormEntryXsn(Form form) {
 		getFormEntryDAO().deleteFormEntryXsn(form.getFormId());
+		FormEntryXsnCache.invalidate(form.getFormId());
 	}
 	
 	/**
@@ -350,12 +531,11 @@ public class FormEntryServiceImpl implements FormEntryService {
 		formEntryXsn.setCreator(Context.getAuthenticatedUser());
 		formEntryXsn.setDateCreated(new Date());
 		
-		// archive all old matching xsns if they exist
-		for (FormEntryXsn oldXsn : getFormEntryDAO().getAllFormEntryXsnsForForm(formEntryXsn.getForm(), false)) {
-			archiveFormEntryXsn(oldXsn);
-		}
+		// archive all old matching xsns if they exist, without loading their data
+		getFormEntryDAO().archiveFormEntryXsns(formEntryXsn.getForm(), Context.getAuthenticatedUser(), new Date());
 		
 		getFormEntryDAO().updateFormEntryXsn(formEntryXsn);
+		FormEntryXsnCache.invalidate(formEntryXsn.getForm().getFormId());
 	}
 	
 	/**
@@ -408,6 +588,7 @@ public class FormEntryServiceImpl implements FormEntryService {
 	 */
 	public void deleteFormEntryXsn(FormEntryXsn xsn) {
 		dao.deleteFormEntryXsn(xsn);
+		FormEntryXsnCache.invalidate(xsn.getForm().getFormId());
 	}
 	
 	/**
@@ -417,6 +598,27 @@ public class FormEntryServiceImpl implements FormEntryService {
 		return dao.getFormEntryXsnById(xsnId);
 	}
 	
+	/**
+	 * @see org.openmrs.module.formentry.FormEntryService#getFormEntryXsnMetadata(Integer)
+	 */
+	public FormEntryXsnMetadata getFormEntryXsnMetadata(Integer formId) {
+		return dao.getFormEntryXsnMetadata(formId);
+	}
+	
+	/**
+	 * @see org.openmrs.module.formentry.FormEntryService#getFormEntryXsnMetadataById(Integer)
+	 */
+	public FormEntryXsnMetadata getFormEntryXsnMetadataById(Integer xsnId) {
+		return dao.getFormEntryXsnMetadataById(xsnId);
+	}
+	
+	/**
+	 * @see org.openmrs.module.formentry.FormEntryService#writeFormEntryXsnData(Integer, OutputStream)
+	 */
+	public boolean writeFormEntryXsnData(Integer xsnId, OutputStream out) throws IOException {
+		return dao.writeFormEntryXsnData(xsnId, out);
+	}
+	
 	/**
 	 * @see org.openmrs.module.formentry.FormEntryService#migrateFormEntryXsnToFilesystem(FormEntryXsn)
 	 */
@@ -424,6 +626,16 @@ public class FormEntryServiceImpl implements FormEntryService {
 		if (xsn == null)
 			return;
 		
+		migrateFormEntryXsnToFilesystem(new FormEntryXsnMetadata(xsn));
+	}
+	
+	/**
+	 * @see org.openmrs.module.formentry.FormEntryService#migrateFormEntryXsnToFilesystem(FormEntryXsnMetadata)
+	 */
+	public void migrateFormEntryXsnToFilesystem(FormEntryXsnMetadata xsn) throws APIException {
+		if (xsn == null)
+			return;
+		
 		// get the directory
 		String dir = Context.getAdministrationService().getGlobalProperty(FormEntryConstants.FORMENTRY_GP_XSN_ARCHIVE_DIR,
 		    null);
@@ -441,12 +653,15 @@ public class FormEntryServiceImpl implements FormEntryService {
 					// write the file
 					xsnFile.createNewFile();
 					fos = new FileOutputStream(xsnFile);
-					fos.write(xsn.getXsnData());
+					if (!dao.writeFormEntryXsnData(xsn.getFormEntryXsnId(), fos)) {
+						fos.close();
+						xsnFile.delete();
+						throw new APIException("could not find XSN #" + xsn.getFormEntryXsnId());
+					}
 					fos.flush();
 					
 					// delete the XSN
-					FormEntryService service = Context.getService(FormEntryService.class);
-					service.deleteFormEntryXsn(xsn);
+					dao.deleteFormEntryXsnById(xsn.getFormEntryXsnId());
 					
 				}
 				catch (IOException e) {
@@ -472,11 +687,12 @@ public class FormEntryServiceImpl implements FormEntryService {
 	 * @param xsn the XSN used to create the filename
 	 * @return the filename
 	 */
-	private String generateXsnFileName(FormEntryXsn xsn) {
+	private String generateXsnFileName(FormEntryXsnMetadata xsn) {
 		if (xsn == null)
 			return null;
 		
-		String filename = xsn.getForm().getUuid() + "-v" + xsn.getForm().getVersion() + "-" + xsn.getFormEntryXsnId()
+		Form form = Context.getFormService().getForm(xsn.getFormId());
+		String filename = form.getUuid() + "-v" + form.getVersion() + "-" + xsn.getFormEntryXsnId()
 		        + ".xsn";
 		
 		return filename;
@@ -0,0 +1,190 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.test.Verifies;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+public class FormEntryConfigurationTest {
+
+	private AdministrationService as;
+
+	@Before
+	public void setup() {
+		as = Mockito.mock(AdministrationService.class);
+
+		PowerMockito.mockStatic(Context.class);
+		Mockito.when(Context.getAdministrationService()).thenReturn(as);
+
+		FormEntryConfiguration.clear();
+	}
+
+	@After
+	public void cleanup() {
+		FormEntryConfiguration.clear();
+	}
+
+	/**
+	 * @see {@link FormEntryConfiguration#getArchiveDirPattern()}
+	 */
+	@Test
+	@Verifies(value = "should cache the value until its global property changes", method = "getArchiveDirPattern()")
+	public void getArchiveDirPattern_shouldCacheTheValueUntilItsGlobalPropertyChanges() throws Exception {
+		Mockito.when(
+		    as.getGlobalProperty(FormEntryConstants.FORMENTRY_GP_QUEUE_ARCHIVE_DIR,
+		        FormEntryConstants.FORMENTRY_GP_QUEUE_ARCHIVE_DIR_DEFAULT)).thenReturn("archive/%Y", "archive/%Y/%M");
+
+		Assert.assertEquals("archive/%Y", FormEntryConfiguration.getArchiveDirPattern());
+		Assert.assertEquals("archive/%Y", FormEntryConfiguration.getArchiveDirPattern());
+
+		FormEntryConfiguration.getInstance().globalPropertyChanged(
+		    new GlobalProperty(FormEntryConstants.FORMENTRY_GP_QUEUE_ARCHIVE_DIR, "archive/%Y/%M"));
+		Assert.assertEquals("archive/%Y/%M", FormEntryConfiguration.getArchiveDirPattern());
+	}
+
+	/**
+	 * @see {@link FormEntryConfiguration#getArchiveDirPattern()}
+	 */
+	@Test
+	@Verifies(value = "should not cache a value whose global property changed while it was loading", method = "getArchiveDirPattern()")
+	public void getArchiveDirPattern_shouldNotCacheAValueWhoseGlobalPropertyChangedWhileItWasLoading() throws Exception {
+		Mockito.when(
+		    as.getGlobalProperty(FormEntryConstants.FORMENTRY_GP_QUEUE_ARCHIVE_DIR,
+		        FormEntryConstants.FORMENTRY_GP_QUEUE_ARCHIVE_DIR_DEFAULT)).thenAnswer(new Answer<String>() {
+
+			private int calls = 0;
+
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				if (++calls > 1)
+					return "archive/%Y/%M";
+
+				// the property is changed after the loader has read the old value
+				FormEntryConfiguration.getInstance().globalPropertyChanged(
+				    new GlobalProperty(FormEntryConstants.FORMENTRY_GP_QUEUE_ARCHIVE_DIR, "archive/%Y/%M"));
+				return "archive/%Y";
+			}
+		});
+
+		Assert.assertEquals("archive/%Y", FormEntryConfiguration.getArchiveDirPattern());
+		Assert.assertEquals("archive/%Y/%M", FormEntryConfiguration.getArchiveDirPattern());
+		Assert.assertEquals("archive/%Y/%M", FormEntryConfiguration.getArchiveDirPattern());
+		Mockito.verify(as, Mockito.times(2)).getGlobalProperty(FormEntryConstants.FORMENTRY_GP_QUEUE_ARCHIVE_DIR,
+		    FormEntryConstants.FORMENTRY_GP_QUEUE_ARCHIVE_DIR_DEFAULT);
+	}
+
+	/**
+	 * @see {@link FormEntryConfiguration#getArchiveDirPattern()}
+	 */
+	@Test
+	@Verifies(value = "should not cache a value that was loading while the cache was cleared", method = "getArchiveDirPattern()")
+	public void getArchiveDirPattern_shouldNotCacheAValueThatWasLoadingWhileTheCacheWasCleared() throws Exception {
+		Mockito.when(
+		    as.getGlobalProperty(FormEntryConstants.FORMENTRY_GP_QUEUE_ARCHIVE_DIR,
+		        FormEntryConstants.FORMENTRY_GP_QUEUE_ARCHIVE_DIR_DEFAULT)).thenAnswer(new Answer<String>() {
+
+			private int calls = 0;
+
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				if (++calls == 1)
+					FormEntryConfiguration.clear();
+				return "archive/" + calls;
+			}
+		});
+
+		Assert.assertEquals("archive/1", FormEntryConfiguration.getArchiveDirPattern());
+		Assert.assertEquals("archive/2", FormEntryConfiguration.getArchiveDirPattern());
+		Assert.assertEquals("archive/2", FormEntryConfiguration.getArchiveDirPattern());
+	}
+
+	/**
+	 * @see {@link FormEntryConfiguration#getFormGlobalProperties()}
+	 */
+	@Test
+	@Verifies(value = "should cache the properties until one of them changes", method = "getFormGlobalProperties()")
+	public void getFormGlobalProperties_shouldCacheThePropertiesUntilOneOfThemChanges() throws Exception {
+		Mockito.when(as.getGlobalProperty(FormEntryConstants.FORMENTRY_GP_PREFIX_LOOKUP, "")).thenReturn("site.");
+		Mockito.when(as.getGlobalPropertiesByPrefix("site.")).thenReturn(properties("old name"),
+		    properties("new name"));
+
+		Assert.assertEquals("old name", FormEntryConfiguration.getFormGlobalProperties().get("site.name"));
+		Assert.assertEquals("old name", FormEntryConfiguration.getFormGlobalProperties().get("site.name"));
+
+		notifyChanged(new GlobalProperty("site.name", "new name"));
+		Assert.assertEquals("new name", FormEntryConfiguration.getFormGlobalProperties().get("site.name"));
+
+		// properties that don't match the prefix aren't listened to
+		notifyChanged(new GlobalProperty("other.name", "other"));
+		Assert.assertEquals("new name", FormEntryConfiguration.getFormGlobalProperties().get("site.name"));
+		Mockito.verify(as, Mockito.times(2)).getGlobalPropertiesByPrefix("site.");
+	}
+
+	/**
+	 * @see {@link FormEntryConfiguration#getFormGlobalProperties()}
+	 */
+	@Test
+	@Verifies(value = "should not cache properties one of which changed while they were loading", method = "getFormGlobalProperties()")
+	public void getFormGlobalProperties_shouldNotCachePropertiesOneOfWhichChangedWhileTheyWereLoading() throws Exception {
+		Mockito.when(as.getGlobalProperty(FormEntryConstants.FORMENTRY_GP_PREFIX_LOOKUP, "")).thenReturn("site.");
+		Mockito.when(as.getGlobalPropertiesByPrefix("site.")).thenAnswer(new Answer<List<GlobalProperty>>() {
+
+			private int calls = 0;
+
+			public List<GlobalProperty> answer(InvocationOnMock invocation) throws Throwable {
+				if (++calls > 1)
+					return properties("new name");
+
+				// the property is changed after the loader has read the old value
+				notifyChanged(new GlobalProperty("site.name", "new name"));
+				return properties("old name");
+			}
+		});
+
+		Assert.assertEquals("old name", FormEntryConfiguration.getFormGlobalProperties().get("site.name"));
+		Assert.assertEquals("new name", FormEntryConfiguration.getFormGlobalProperties().get("site.name"));
+		Assert.assertEquals("new name", FormEntryConfiguration.getFormGlobalProperties().get("site.name"));
+		Mockito.verify(as, Mockito.times(2)).getGlobalPropertiesByPrefix("site.");
+	}
+
+	/**
+	 * Notifies the listener the way the administration service does, only if it supports the
+	 * property
+	 */
+	private void notifyChanged(GlobalProperty property) {
+		FormEntryConfiguration listener = FormEntryConfiguration.getInstance();
+		if (listener.supportsPropertyName(property.getProperty()))
+			listener.globalPropertyChanged(property);
+	}
+
+	private List<GlobalProperty> properties(String siteName) {
+		return Arrays.asList(new GlobalProperty("site.name", siteName), new GlobalProperty("site.code", "S1"));
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry;
+
+import java.io.StringReader;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+public class FormEntryQueueHeaderTest {
+	
+	/**
+	 * @see {@link FormEntryQueueHeader#read(java.io.Reader)}
+	 */
+	@Test
+	@Verifies(value = "should read the form id and uid", method = "read(Reader)")
+	public void read_shouldReadTheFormIdAndUid() throws Exception {
+		String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+		        + "<form id=\"12\" name=\"Adult Return\" xmlns:xd=\"http://schemas.microsoft.com/office/infopath/2003\">"
+		        + "<header><enterer>1^Super User</enterer><uid>ABC-123</uid></header>"
+		        + "<patient><patient.patient_id>7</patient.patient_id></patient></form>";
+		
+		FormEntryQueueHeader header = FormEntryQueueHeader.read(new StringReader(xml));
+		Assert.assertEquals("12", header.getFormId());
+		Assert.assertEquals("ABC-123", header.getUid());
+	}
+	
+	/**
+	 * @see {@link FormEntryQueueHeader#read(java.io.Reader)}
+	 */
+	@Test
+	@Verifies(value = "should return empty values if the form element or uid are missing", method = "read(Reader)")
+	public void read_shouldReturnEmptyValuesIfTheFormElementOrUidAreMissing() throws Exception {
+		FormEntryQueueHeader header = FormEntryQueueHeader.read(new StringReader(
+		        "<form id=\"12\"><header><enterer>1</enterer></header><uid>not in the header</uid></form>"));
+		Assert.assertEquals("12", header.getFormId());
+		Assert.assertEquals("", header.getUid());
+		
+		header = FormEntryQueueHeader.read(new StringReader("<notaform id=\"12\"><header><uid>1</uid></header></notaform>"));
+		Assert.assertEquals("", header.getFormId());
+		Assert.assertEquals("", header.getUid());
+	}
+	
+	/**
+	 * @see {@link FormEntryQueueHeader#read(java.io.Reader)}
+	 */
+	@Test
+	@Verifies(value = "should stop reading after the uid", method = "read(Reader)")
+	public void read_shouldStopReadingAfterTheUid() throws Exception {
+		// the document is not well formed after the header, reading it all would fail
+		FormEntryQueueHeader header = FormEntryQueueHeader.read(new StringReader(
+		        "<form id=\"3\"><header><uid>xyz</uid></header><obs></form>"));
+		Assert.assertEquals("3", header.getFormId());
+		Assert.assertEquals("xyz", header.getUid());
+	}
+}
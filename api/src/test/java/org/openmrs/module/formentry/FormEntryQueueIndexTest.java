@@ -0,0 +1,195 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+public class FormEntryQueueIndexTest {
+
+	private File queueDir;
+
+	@Before
+	public void setup() throws IOException {
+		queueDir = File.createTempFile("formentry", "queue");
+		queueDir.delete();
+		queueDir.mkdir();
+		FormEntryQueueIndex.invalidate();
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		FormEntryQueueIndex.invalidate();
+		FileUtils.deleteDirectory(queueDir);
+	}
+
+	/**
+	 * @see {@link FormEntryQueueIndex#poll(File)}
+	 */
+	@Test
+	@Verifies(value = "should return the oldest file and remove it from the index", method = "poll(File)")
+	public void poll_shouldReturnTheOldestFileAndRemoveItFromTheIndex() throws Exception {
+		createQueueFile("b.xml", 2000);
+		createQueueFile("a.xml", 3000);
+		createQueueFile("c.xml", 1000);
+
+		Assert.assertEquals("c.xml", FormEntryQueueIndex.poll(queueDir));
+		// the polled file is still in the directory, but the index isn't scanned again
+		Assert.assertEquals(2, FormEntryQueueIndex.size(queueDir));
+		Assert.assertEquals("b.xml", FormEntryQueueIndex.poll(queueDir));
+		Assert.assertEquals("a.xml", FormEntryQueueIndex.poll(queueDir));
+	}
+
+	/**
+	 * @see {@link FormEntryQueueIndex#poll(File)}
+	 */
+	@Test
+	@Verifies(value = "should scan the directory again once the index is empty", method = "poll(File)")
+	public void poll_shouldScanTheDirectoryAgainOnceTheIndexIsEmpty() throws Exception {
+		File first = createQueueFile("a.xml", 1000);
+		Assert.assertEquals("a.xml", FormEntryQueueIndex.poll(queueDir));
+		first.delete();
+
+		createQueueFile("b.xml", 2000);
+		Assert.assertEquals("b.xml", FormEntryQueueIndex.poll(queueDir));
+	}
+
+	/**
+	 * @see {@link FormEntryQueueIndex#poll(File)}
+	 */
+	@Test
+	@Verifies(value = "should scan the directory again after the index is invalidated", method = "poll(File)")
+	public void poll_shouldScanTheDirectoryAgainAfterTheIndexIsInvalidated() throws Exception {
+		createQueueFile("b.xml", 2000);
+		Assert.assertEquals(1, FormEntryQueueIndex.size(queueDir));
+
+		// copied into the queue by hand, the index doesn't know about it yet
+		createQueueFile("a.xml", 1000);
+		Assert.assertEquals(1, FormEntryQueueIndex.size(queueDir));
+
+		FormEntryQueueIndex.invalidate();
+		Assert.assertEquals("a.xml", FormEntryQueueIndex.poll(queueDir));
+		Assert.assertEquals("b.xml", FormEntryQueueIndex.poll(queueDir));
+	}
+
+	/**
+	 * @see {@link FormEntryQueueIndex#added(File,String)}
+	 */
+	@Test
+	@Verifies(value = "should add the file to the index without scanning the directory", method = "added(File,String)")
+	public void added_shouldAddTheFileToTheIndexWithoutScanningTheDirectory() throws Exception {
+		createQueueFile("a.xml", 1000);
+		Assert.assertEquals(1, FormEntryQueueIndex.size(queueDir));
+
+		createQueueFile("b.xml", 2000);
+		FormEntryQueueIndex.added(queueDir, "b.xml");
+		createQueueFile("c.xml", 3000);
+
+		Assert.assertEquals(2, FormEntryQueueIndex.size(queueDir));
+		Assert.assertEquals("a.xml", FormEntryQueueIndex.poll(queueDir));
+		Assert.assertEquals("b.xml", FormEntryQueueIndex.poll(queueDir));
+	}
+
+	/**
+	 * @see {@link FormEntryQueueIndex#added(File,String)}
+	 */
+	@Test
+	@Verifies(value = "should index a file found by a scan only once", method = "added(File,String)")
+	public void added_shouldIndexAFileFoundByAScanOnlyOnce() throws Exception {
+		// the file is written and a scan finds it before the writer adds it to the index
+		createQueueFile("a.xml", 1000);
+		Assert.assertEquals(1, FormEntryQueueIndex.size(queueDir));
+		FormEntryQueueIndex.added(queueDir, "a.xml");
+
+		Assert.assertEquals(1, FormEntryQueueIndex.size(queueDir));
+	}
+
+	/**
+	 * @see {@link FormEntryQueueIndex#added(File,String)}
+	 */
+	@Test
+	@Verifies(value = "should not lose files added while the directory is scanned", method = "added(File,String)")
+	public void added_shouldNotLoseFilesAddedWhileTheDirectoryIsScanned() throws Exception {
+		final int fileCount = 200;
+		final File claimedDir = new File(queueDir, "claimed");
+		claimedDir.mkdir();
+
+		// files are written and added to the index while the queue is drained, so the index keeps
+		// running empty and is scanned again while files are being added
+		Thread writer = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < fileCount; i++) {
+						String fileName = "item" + i + ".xml";
+						FileUtils.writeStringToFile(new File(queueDir, fileName), "queue item");
+						FormEntryQueueIndex.added(queueDir, fileName);
+					}
+				}
+				catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		writer.start();
+
+		Set<String> claimed = new HashSet<String>();
+		long timeout = System.currentTimeMillis() + 30000;
+		while (claimed.size() < fileCount && System.currentTimeMillis() < timeout) {
+			String fileName = FormEntryQueueIndex.poll(queueDir);
+			if (fileName == null)
+				continue;
+
+			if (new File(queueDir, fileName).renameTo(new File(claimedDir, fileName)))
+				Assert.assertTrue("claimed twice: " + fileName, claimed.add(fileName));
+			FormEntryQueueIndex.removed(queueDir, fileName);
+		}
+		writer.join();
+
+		Assert.assertEquals(fileCount, claimed.size());
+	}
+
+	/**
+	 * @see {@link FormEntryQueueIndex#removed(File,String)}
+	 */
+	@Test
+	@Verifies(value = "should remove the file from the index", method = "removed(File,String)")
+	public void removed_shouldRemoveTheFileFromTheIndex() throws Exception {
+		createQueueFile("a.xml", 1000);
+		createQueueFile("b.xml", 2000);
+		Assert.assertEquals(2, FormEntryQueueIndex.size(queueDir));
+
+		FormEntryQueueIndex.removed(queueDir, "a.xml");
+
+		Assert.assertEquals(1, FormEntryQueueIndex.size(queueDir));
+		Assert.assertEquals("b.xml", FormEntryQueueIndex.poll(queueDir));
+	}
+
+	private File createQueueFile(String fileName, long modified) throws IOException {
+		File file = new File(queueDir, fileName);
+		FileUtils.writeStringToFile(file, "queue item");
+		file.setLastModified(modified);
+		return file;
+	}
+}
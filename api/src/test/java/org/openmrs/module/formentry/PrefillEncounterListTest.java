@@ -0,0 +1,87 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.openmrs.Encounter;
+import org.openmrs.Patient;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.test.Verifies;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+public class PrefillEncounterListTest {
+
+	private FormEntryService fes;
+
+	private Patient patient = new Patient(7);
+
+	@Before
+	public void setup() {
+		fes = Mockito.mock(FormEntryService.class);
+		AdministrationService as = Mockito.mock(AdministrationService.class);
+		Mockito.when(as.getGlobalProperty(FormEntryConstants.FORMENTRY_GP_PREFILL_MAX_ENCOUNTERS)).thenReturn("2");
+
+		PowerMockito.mockStatic(Context.class);
+		Mockito.when(Context.getService(FormEntryService.class)).thenReturn(fes);
+		Mockito.when(Context.getAdministrationService()).thenReturn(as);
+
+		FormEntryConfiguration.clear();
+	}
+
+	@After
+	public void cleanup() {
+		FormEntryConfiguration.clear();
+	}
+
+	/**
+	 * @see {@link PrefillEncounterList#size()}
+	 */
+	@Test
+	@Verifies(value = "should not load the encounters until the list is used", method = "size()")
+	public void size_shouldNotLoadTheEncountersUntilTheListIsUsed() throws Exception {
+		new PrefillEncounterList(patient);
+
+		Mockito.verifyZeroInteractions(fes);
+	}
+
+	/**
+	 * @see {@link PrefillEncounterList#size()}
+	 */
+	@Test
+	@Verifies(value = "should load at most the configured number of encounters once", method = "size()")
+	public void size_shouldLoadAtMostTheConfiguredNumberOfEncountersOnce() throws Exception {
+		List<Encounter> encounters = Arrays.asList(new Encounter(3), new Encounter(2));
+		Mockito.when(fes.getLatestEncounters(patient, 2)).thenReturn(encounters);
+
+		PrefillEncounterList list = new PrefillEncounterList(patient);
+		Assert.assertEquals(2, list.size());
+		Assert.assertSame(encounters.get(0), list.get(0));
+		Assert.assertEquals(encounters, list);
+
+		Mockito.verify(fes, Mockito.times(1)).getLatestEncounters(patient, 2);
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openmrs.Form;
+import org.openmrs.api.FormService;
+import org.openmrs.api.context.Context;
+import org.openmrs.test.Verifies;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest( { Context.class, FormEntryUtil.class })
+public class RebuildXsnsJobTest {
+
+	private FormEntryService fes;
+
+	@Before
+	public void setup() {
+		fes = Mockito.mock(FormEntryService.class);
+		FormService fs = Mockito.mock(FormService.class);
+		Mockito.when(fs.getForm(Mockito.anyInt())).thenAnswer(new Answer<Form>() {
+
+			public Form answer(InvocationOnMock invocation) throws Throwable {
+				return new Form((Integer) invocation.getArguments()[0]);
+			}
+		});
+
+		PowerMockito.mockStatic(Context.class);
+		Mockito.when(Context.getService(FormEntryService.class)).thenReturn(fes);
+		Mockito.when(Context.getFormService()).thenReturn(fs);
+
+		PowerMockito.mockStatic(FormEntryUtil.class);
+
+		// the module isn't started in tests, so the job runs in the current thread
+		Assert.assertNull(FormEntryActivator.getDaemonToken());
+	}
+
+	/**
+	 * @see {@link RebuildXsnsJob#start()}
+	 */
+	@Test
+	@Verifies(value = "should rebuild every form and count the rebuilt, unchanged and failed ones", method = "start()")
+	public void start_shouldRebuildEveryFormAndCountTheRebuiltUnchangedAndFailedOnes() throws Exception {
+		Form retired = new Form(4);
+		retired.setRetired(true);
+		Mockito.when(fes.getFormsWithXsn(false)).thenReturn(
+		    Arrays.asList(new Form(1), new Form(2), new Form(3), retired));
+		Mockito.when(FormEntryUtil.rebuildXSN(Mockito.any(Form.class))).thenAnswer(new Answer<Boolean>() {
+
+			public Boolean answer(InvocationOnMock invocation) throws Throwable {
+				Integer formId = ((Form) invocation.getArguments()[0]).getFormId();
+				if (formId == 3)
+					throw new IOException("broken xsn");
+				return formId == 2;
+			}
+		});
+
+		RebuildXsnsJob job = RebuildXsnsJob.start();
+
+		Assert.assertTrue(job.isFinished());
+		Assert.assertFalse(job.isCancelled());
+		Assert.assertEquals(3, job.getTotal());
+		Assert.assertEquals(3, job.getCompleted());
+		Assert.assertEquals(1, job.getSucceeded());
+		Assert.assertEquals(1, job.getUnchanged());
+		Assert.assertEquals(1, job.getFailures().size());
+		Assert.assertEquals("broken xsn", job.getFailures().get(3));
+		Assert.assertSame(job, RebuildXsnsJob.getJob(job.getId()));
+	}
+
+	/**
+	 * @see {@link RebuildXsnsJob#cancelAll()}
+	 */
+	@Test
+	@Verifies(value = "should stop the running jobs after the forms being rebuilt", method = "cancelAll()")
+	public void cancelAll_shouldStopTheRunningJobsAfterTheFormsBeingRebuilt() throws Exception {
+		Mockito.when(fes.getFormsWithXsn(false)).thenReturn(Arrays.asList(new Form(1), new Form(2), new Form(3)));
+		Mockito.when(FormEntryUtil.rebuildXSN(Mockito.any(Form.class))).thenAnswer(new Answer<Boolean>() {
+
+			public Boolean answer(InvocationOnMock invocation) throws Throwable {
+				// the job is cancelled while the first form is rebuilt
+				RebuildXsnsJob.cancelAll();
+				return true;
+			}
+		});
+
+		RebuildXsnsJob job = RebuildXsnsJob.start();
+
+		Assert.assertTrue(job.isFinished());
+		Assert.assertTrue(job.isCancelled());
+		Assert.assertEquals(3, job.getTotal());
+		Assert.assertEquals(1, job.getCompleted());
+		Assert.assertEquals(1, job.getSucceeded());
+	}
+}
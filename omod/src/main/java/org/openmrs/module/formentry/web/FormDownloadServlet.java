@@ -1,17 +1,16 @@
 package org.openmrs.module.formentry.web;
 
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -21,14 +20,11 @@ import javax.servlet.http.HttpSession;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
 import org.apache.velocity.app.event.EventCartridge;
-import org.apache.velocity.runtime.RuntimeConstants;
-import org.apache.velocity.runtime.log.CommonsLogLogChute;
-import org.openmrs.Encounter;
+import org.openmrs.Concept;
 import org.openmrs.Form;
-import org.openmrs.GlobalProperty;
 import org.openmrs.Patient;
 import org.openmrs.Person;
 import org.openmrs.Relationship;
@@ -36,11 +32,15 @@ import org.openmrs.User;
 import org.openmrs.api.FormService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.formentry.FormEntryConfiguration;
 import org.openmrs.module.formentry.FormEntryConstants;
+import org.openmrs.module.formentry.FormEntrySchemaCache;
+import org.openmrs.module.formentry.FormEntryTemplateCache;
+import org.openmrs.module.formentry.FormEntryService;
 import org.openmrs.module.formentry.FormEntryUtil;
-import org.openmrs.module.formentry.FormSchemaBuilder;
 import org.openmrs.module.formentry.FormXmlTemplateBuilder;
-import org.openmrs.module.formentry.PublishInfoPath;
+import org.openmrs.module.formentry.PrefillEncounterList;
+import org.openmrs.module.formentry.RebuildXsnsJob;
 import org.openmrs.util.FormUtil;
 import org.openmrs.util.OpenmrsUtil;
 import org.openmrs.util.VelocityExceptionHandler;
@@ -59,8 +59,6 @@ public class FormDownloadServlet extends HttpServlet {
 	
 	private Log log = LogFactory.getLog(this.getClass());
 	
-	private VelocityEngine ve;
-	
 	/**
 	 * Serve up the xml file for filling out a form
 	 * 
@@ -103,8 +101,6 @@ public class FormDownloadServlet extends HttpServlet {
 		String title = form.getName() + "(" + FormUtil.getFormUriWithoutExtension(form) + ")";
 		title = title.replaceAll(" ", "_");
 		
-		initializeVelocity();
-		
 		VelocityContext velocityContext = new VelocityContext();
 		velocityContext.put("form", form);
 		velocityContext.put("url", url);
@@ -123,22 +119,10 @@ public class FormDownloadServlet extends HttpServlet {
 		velocityContext.put("time", new SimpleDateFormat("HH:mm:ss"));
 		velocityContext.put("sessionId", httpSession.getId());
 		velocityContext.put("uid", FormEntryUtil.generateFormUid());
-		List<Encounter> encounters = Context.getEncounterService().getEncountersByPatientId(patient.getPatientId(), false);
-		velocityContext.put("patientEncounters", encounters);
+		// only the latest encounters, loaded if the template uses them
+		velocityContext.put("patientEncounters", new PrefillEncounterList(patient));
 		List<Relationship> relationships = Context.getPersonService().getRelationshipsByPerson(patient);
-		// change Person objects to Patient objects if applicable
-		for (Relationship rel : relationships) {
-			Person otherPerson = null;
-			if (rel.getPersonA().equals(patient)) {
-				otherPerson = rel.getPersonB();
-				if (otherPerson.isPatient())
-					rel.setPersonB(Context.getPatientService().getPatient(otherPerson.getPersonId()));
-			} else {
-				otherPerson = rel.getPersonA();
-				if (otherPerson.isPatient())
-					rel.setPersonA(Context.getPatientService().getPatient(otherPerson.getPersonId()));
-			}
-		}
+		setRelatedPatients(patient, relationships);
 		// we need at least one empty relationship in InfoPath
 		if (relationships.isEmpty()) {
 			relationships = new ArrayList();
@@ -146,28 +130,26 @@ public class FormDownloadServlet extends HttpServlet {
 		}
 		velocityContext.put("relationships", relationships);
 		
-		String prefix = Context.getAdministrationService().getGlobalProperty(FormEntryConstants.FORMENTRY_GP_PREFIX_LOOKUP, "");
-		List<GlobalProperty> globalPropertiesByPrefix = Context.getAdministrationService().getGlobalPropertiesByPrefix(prefix);
-		Map<String, String> mapByPrefix = new HashMap<String, String>();
-		for (GlobalProperty gp : globalPropertiesByPrefix) {
-			mapByPrefix.put(gp.getProperty(), gp.getPropertyValue());
-		}
-		velocityContext.put("globalProperties", mapByPrefix);
+		velocityContext.put("globalProperties", FormEntryConfiguration.getFormGlobalProperties());
 		
 		// add the error handler
 		EventCartridge ec = new EventCartridge();
 		ec.addEventHandler(new VelocityExceptionHandler());
 		velocityContext.attachEventCartridge(ec);
 		
-		String template = FormEntryUtil.getFormTemplate(form);
-		// just in case template has not been assigned, generate it on the fly
-		if (template == null)
-			template = new FormXmlTemplateBuilder(form, url).getXmlTemplate(true);
-		
 		String xmldoc = null;
 		try {
 			StringWriter w = new StringWriter();
-			ve.evaluate(velocityContext, w, this.getClass().getName(), template);
+			// the form's template is only parsed again when it changes
+			Template template = FormEntryTemplateCache.getTemplate(form);
+			if (template != null)
+				template.merge(velocityContext, w);
+			else {
+				// just in case template has not been assigned, generate it on the fly
+				String generated = new FormXmlTemplateBuilder(form, url).getXmlTemplate(true);
+				FormEntryTemplateCache.getVelocityEngine().evaluate(velocityContext, w, this.getClass().getName(),
+				    generated);
+			}
 			xmldoc = w.toString();
 		}
 		catch (Exception e) {
@@ -190,22 +172,32 @@ public class FormDownloadServlet extends HttpServlet {
 	}
 	
 	/**
-	 * A utility method to initialize Velocity. This could be called in the constructor, but putting
-	 * it in a separate method like this allows for late-initialization only when someone actually
-	 * uses this servlet.
+	 * Changes the Person objects of the given relationships to Patient objects if applicable, all
+	 * loaded with one query. A related person that can't be loaded as a patient is kept as is.
+	 * 
+	 * @param patient the patient whose relationships these are
+	 * @param relationships the relationships of the patient
+	 * @should replace related persons with their patients
+	 * @should keep a related person whose patient can't be loaded
 	 */
-	private void initializeVelocity() {
-		if (ve == null) {
-			ve = new VelocityEngine();
-			
-			ve.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS,
-			    "org.apache.velocity.runtime.log.CommonsLogLogChute");
-			ve.setProperty(CommonsLogLogChute.LOGCHUTE_COMMONS_LOG_NAME, "formentry_velocity");
-			try {
-				ve.init();
-			}
-			catch (Exception e) {
-				log.error("velocity init failed", e);
+	void setRelatedPatients(Patient patient, List<Relationship> relationships) {
+		Set<Integer> relatedPatientIds = new HashSet<Integer>();
+		for (Relationship rel : relationships) {
+			Person otherPerson = rel.getPersonA().equals(patient) ? rel.getPersonB() : rel.getPersonA();
+			if (otherPerson.isPatient())
+				relatedPatientIds.add(otherPerson.getPersonId());
+		}
+		Map<Integer, Patient> relatedPatients = Context.getService(FormEntryService.class).getPatients(relatedPatientIds);
+		for (Relationship rel : relationships) {
+			Person otherPerson = null;
+			if (rel.getPersonA().equals(patient)) {
+				otherPerson = rel.getPersonB();
+				if (otherPerson.isPatient() && relatedPatients.containsKey(otherPerson.getPersonId()))
+					rel.setPersonB(relatedPatients.get(otherPerson.getPersonId()));
+			} else {
+				otherPerson = rel.getPersonA();
+				if (otherPerson.isPatient() && relatedPatients.containsKey(otherPerson.getPersonId()))
+					rel.setPersonA(relatedPatients.get(otherPerson.getPersonId()));
 			}
 		}
 	}
@@ -252,8 +244,9 @@ public class FormDownloadServlet extends HttpServlet {
 			}
 			
 			// Download the XSN and Upload it again
+			boolean rebuilt;
 			try {
-				FormEntryUtil.rebuildXSN(form);
+				rebuilt = FormEntryUtil.rebuildXSN(form);
 			}
 			catch (IOException e) {
 				log.warn("Unable to rebuild xsn", e);
@@ -261,33 +254,34 @@ public class FormDownloadServlet extends HttpServlet {
 				return;
 			}
 			
-			httpSession.setAttribute(WebConstants.OPENMRS_MSG_ATTR, "formentry.xsn.rebuild.success");
+			httpSession.setAttribute(WebConstants.OPENMRS_MSG_ATTR, rebuilt ? "formentry.xsn.rebuild.success"
+			        : "formentry.xsn.rebuild.unchanged");
 			response.sendRedirect(request.getHeader("referer"));
 			
 		} else if ("rebuildAll".equals(target)) {
-			// Download all XSNs and upload them again
-			Integer count = 0;
-			for (Form formObj : formService.getForms(false, false)) {
-				Object[] streamAndDir = FormEntryUtil.getCurrentXSN(formObj, false);
-				InputStream formStream = (InputStream) streamAndDir[0];
-				File tempDir = (File) streamAndDir[1];
-				if (formStream != null) {
-					PublishInfoPath.publishXSN(formStream);
-					count = count + 1;
-					try {
-						OpenmrsUtil.deleteDirectory(tempDir);
-					}
-					catch (IOException ioe) {}
-					
-					try {
-						formStream.close();
-					}
-					catch (IOException ioe) {}
-				}
+			// Download all XSNs and upload them again, in the background because
+			// this takes far longer than a request should
+			RebuildXsnsJob job = RebuildXsnsJob.start();
+			
+			String referer = request.getHeader("referer");
+			if (referer == null) {
+				writeRebuildStatus(response, job);
+				return;
 			}
-			log.debug(count + " xsn(s) rebuilt");
-			httpSession.setAttribute(WebConstants.OPENMRS_MSG_ATTR, "formentry.xsns.rebuild.success");
-			response.sendRedirect(request.getHeader("referer"));
+			
+			String statusUrl = request.getContextPath() + "/moduleServlet/formentry/formDownload?target=rebuildAllStatus&jobId="
+			        + job.getId();
+			httpSession.setAttribute(WebConstants.OPENMRS_MSG_ATTR, Context.getMessageSourceService().getMessage(
+			    "formentry.xsns.rebuild.started", new Object[] { job.getTotal(), statusUrl }, Context.getLocale()));
+			response.sendRedirect(referer);
+		} else if ("rebuildAllStatus".equals(target)) {
+			RebuildXsnsJob job = RebuildXsnsJob.getJob(request.getParameter("jobId"));
+			if (job == null) {
+				response.sendError(404);
+				return;
+			}
+			
+			writeRebuildStatus(response, job);
 		} else {
 			if (form == null) {
 				log.warn("formId must point to a valid form");
@@ -302,10 +296,11 @@ public class FormDownloadServlet extends HttpServlet {
 			// Payload to return if desired form is string conversion capable
 			String payload = null;
 			if ("schema".equalsIgnoreCase(target)) {
-				payload = new FormSchemaBuilder(form).getSchema();
+				payload = FormEntrySchemaCache.getSchema(form);
 				setFilename(response, FormEntryConstants.FORMENTRY_DEFAULT_SCHEMA_NAME);
 			} else if ("template".equalsIgnoreCase(target)) {
-				payload = new FormXmlTemplateBuilder(form, url).getXmlTemplate(false);
+				Map<Integer, Concept> concepts = Context.getService(FormEntryService.class).getFormConcepts(form);
+				payload = new FormXmlTemplateBuilder(form, url, concepts).getXmlTemplate(false);
 				setFilename(response, FormEntryConstants.FORMENTRY_DEFAULT_TEMPLATE_NAME);
 			} else if ("xsn".equalsIgnoreCase(target)) {
 				// Download full xsn for editing (if exists) Otherwise, get
@@ -321,21 +316,8 @@ public class FormDownloadServlet extends HttpServlet {
 				
 				setFilename(response, filename);
 				
-				Object[] streamAndDir = FormEntryUtil.getCurrentXSN(form, true);
-				FileInputStream formStream = (FileInputStream) streamAndDir[0];
-				File tempDir = (File) streamAndDir[1];
-				
-				if (formStream != null) {
-					OpenmrsUtil.copyFile(formStream, response.getOutputStream());
-					try {
-						formStream.close();
-					}
-					catch (IOException ioe) {}
-					try {
-						OpenmrsUtil.deleteDirectory(tempDir);
-					}
-					catch (IOException ioe) {}
-				} else {
+				// compiled in memory and written straight to the response
+				if (!FormEntryUtil.writeCurrentXSN(form, true, response.getOutputStream())) {
 					log.error("Could not return an xsn");
 					response.sendError(500);
 				}
@@ -369,4 +351,53 @@ public class FormDownloadServlet extends HttpServlet {
 	private void setFilename(HttpServletResponse response, String filename) {
 		response.setHeader("Content-Disposition", "attachment; filename=" + filename);
 	}
+	
+	/**
+	 * Writes the progress of an xsn rebuild job to the response as json
+	 * 
+	 * @param response the response to write to
+	 * @param job the job to report on
+	 * @throws IOException if the response can't be written
+	 */
+	private void writeRebuildStatus(HttpServletResponse response, RebuildXsnsJob job) throws IOException {
+		StringBuilder json = new StringBuilder("{");
+		json.append("\"jobId\":\"").append(job.getId()).append("\"");
+		json.append(",\"finished\":").append(job.isFinished());
+		json.append(",\"cancelled\":").append(job.isCancelled());
+		json.append(",\"started\":").append(job.getStarted().getTime());
+		json.append(",\"ended\":").append(job.getFinished() == null ? "null" : String.valueOf(job.getFinished().getTime()));
+		json.append(",\"total\":").append(job.getTotal());
+		json.append(",\"completed\":").append(job.getCompleted());
+		json.append(",\"succeeded\":").append(job.getSucceeded());
+		json.append(",\"unchanged\":").append(job.getUnchanged());
+		json.append(",\"failures\":[");
+		boolean first = true;
+		for (Map.Entry<Integer, String> failure : job.getFailures().entrySet()) {
+			if (!first)
+				json.append(",");
+			first = false;
+			json.append("{\"formId\":").append(failure.getKey());
+			json.append(",\"error\":\"").append(escapeJson(failure.getValue())).append("\"}");
+		}
+		json.append("]}");
+		
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		response.getWriter().write(json.toString());
+	}
+	
+	private String escapeJson(String s) {
+		StringBuilder escaped = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				escaped.append('\\').append(c);
+			else if (c < 0x20)
+				escaped.append(String.format("\\u%04x", (int) c));
+			else
+				escaped.append(c);
+		}
+		return escaped.toString();
+	}
 }
@@ -15,7 +15,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.formentry.FormEntryService;
-import org.openmrs.module.formentry.FormEntryXsn;
+import org.openmrs.module.formentry.FormEntryXsnCache;
+import org.openmrs.module.formentry.FormEntryXsnMetadata;
 
 /**
  * Provides a servlet through which an XSN is downloaded. This class differs
@@ -69,7 +70,9 @@ public class XsnDownloadServlet extends HttpServlet {
 		//File file = FormEntryUtil.getXSNFile(filename);
 		FormEntryService formEntryService = (FormEntryService)Context.getService(FormEntryService.class);
 		
-		FormEntryXsn xsn = formEntryService.getFormEntryXsn(formId);
+		// only the id and date of the xsn are loaded here, the (large) xsn data is
+		// only sent if the client's copy is out of date
+		FormEntryXsnMetadata xsn = (formId == null) ? null : formEntryService.getFormEntryXsnMetadata(formId);
 		
 		if (xsn != null) {
 			Date dateModified = xsn.getDateCreated();
@@ -78,7 +81,6 @@ public class XsnDownloadServlet extends HttpServlet {
 			if (log.isDebugEnabled()) {
 				log.debug("xsn modified date: " + dateModified);
 				log.debug("xsn etag: " + timeModified);
-				log.debug("length of xsn.getXsnData(): " + xsn.getXsnData().length);
 			}
 			
 			// InfoPath checks one or both of these values to determine if it needs to 
@@ -86,11 +88,21 @@ public class XsnDownloadServlet extends HttpServlet {
 			response.setDateHeader("Last-Modified", timeModified);
 			response.setHeader("ETag", "" + timeModified);
 			
+			if (isNotModified(request, "" + timeModified, timeModified)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+			
 			OutputStream out = response.getOutputStream();
-	    	
-	    	out.write(xsn.getXsnData());
-	    	
-	    	out.flush();
+			
+			// served from the xsn cache, which reads the data from the database on a miss
+			if (!FormEntryXsnCache.write(xsn, out)) {
+				// the xsn was archived or deleted since its metadata was fetched
+				response.sendError(404);
+				return;
+			}
+			
+			out.flush();
 		} 
 		else {
 			log.error(
@@ -101,6 +113,47 @@ public class XsnDownloadServlet extends HttpServlet {
 		}
 	}
 
+	/**
+	 * Checks the conditional headers of the request against the current xsn. If-None-Match wins
+	 * over If-Modified-Since when both are sent, as per the http spec.
+	 * 
+	 * @param request the request from the client
+	 * @param etag the etag of the current xsn
+	 * @param timeModified the time the current xsn was created
+	 * @return true if the client's copy of the xsn is still current
+	 * @should return true if the etag is in If-None-Match
+	 * @should return false if the etag is not in If-None-Match even if If-Modified-Since matches
+	 * @should return true if the xsn was not modified since If-Modified-Since
+	 * @should return false if the xsn was modified since If-Modified-Since
+	 * @should return false if the request has no conditional headers
+	 */
+	boolean isNotModified(HttpServletRequest request, String etag, long timeModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/"))
+					tag = tag.substring(2);
+				if (tag.length() > 1 && tag.startsWith("\"") && tag.endsWith("\""))
+					tag = tag.substring(1, tag.length() - 1);
+				if (tag.equals("*") || tag.equals(etag))
+					return true;
+			}
+			return false;
+		}
+		
+		try {
+			long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+			// http dates only have second precision
+			if (ifModifiedSince != -1 && timeModified / 1000 <= ifModifiedSince / 1000)
+				return true;
+		}
+		catch (IllegalArgumentException e) {
+			// an unparseable date is ignored
+			log.debug("Invalid If-Modified-Since header", e);
+		}
+		
+		return false;
+	}
 	
-
 }
@@ -0,0 +1,110 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry.web.controller;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.formentry.FormEntryMetrics;
+import org.openmrs.module.formentry.FormEntryMetrics.Histogram;
+import org.openmrs.module.formentry.FormEntryMetrics.Stage;
+import org.openmrs.module.formentry.FormEntryService;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.ModelMap;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+ * controller for formEntryMetrics.htm requests, shows the queue pipeline metrics as a page or, with
+ * the format=json parameter, as json
+ */
+@Controller
+@RequestMapping("module/formentry/formEntryMetrics.htm")
+public class FormEntryMetricsController {
+
+	/**
+	 * generate the model and direct GET requests to the JSP
+	 *
+	 * @param modelMap the model for the JSP
+	 * @return path to the JSP file
+	 */
+	@RequestMapping(method = RequestMethod.GET)
+	public String getPage(ModelMap modelMap) {
+		FormEntryService service = Context.getService(FormEntryService.class);
+		modelMap.put("metrics", service.getFormEntryMetrics());
+		modelMap.put("queueSize", service.getFormEntryQueueSize());
+		modelMap.put("bucketBounds", Histogram.getBucketBoundsMillis());
+		return "module/formentry/formEntryMetrics";
+	}
+
+	/**
+	 * write the metrics to the response as json
+	 *
+	 * @param response the response to write to
+	 * @throws IOException if the response can't be written
+	 */
+	@RequestMapping(method = RequestMethod.GET, params = "format=json")
+	public void getJson(HttpServletResponse response) throws IOException {
+		FormEntryService service = Context.getService(FormEntryService.class);
+		FormEntryMetrics metrics = service.getFormEntryMetrics();
+
+		StringBuilder json = new StringBuilder("{");
+		json.append("\"queueSize\":").append(service.getFormEntryQueueSize());
+		json.append(",\"processed\":").append(metrics.getProcessedCount());
+		json.append(",\"errored\":").append(metrics.getErroredCount());
+		json.append(",\"archived\":").append(metrics.getArchivedCount());
+		json.append(",\"since\":").append(metrics.getSince().getTime());
+		json.append(",\"lastRun\":{\"started\":");
+		json.append(metrics.getLastRunStarted() == null ? "null" : String.valueOf(metrics.getLastRunStarted().getTime()));
+		json.append(",\"millis\":").append(metrics.getLastRunMillis());
+		json.append(",\"drained\":").append(metrics.getLastRunDrained());
+		json.append(",\"drainRatePerSecond\":").append(metrics.getDrainRate()).append("}");
+		json.append(",\"bucketBoundsMillis\":").append(toJson(Histogram.getBucketBoundsMillis()));
+		json.append(",\"stages\":{");
+		boolean first = true;
+		for (Map.Entry<Stage, Histogram> entry : metrics.getStages().entrySet()) {
+			Histogram histogram = entry.getValue();
+			if (!first)
+				json.append(",");
+			first = false;
+			json.append("\"").append(entry.getKey().name()).append("\":{");
+			json.append("\"count\":").append(histogram.getCount());
+			json.append(",\"meanMillis\":").append(histogram.getMeanMillis());
+			json.append(",\"maxMillis\":").append(histogram.getMaxMillis());
+			json.append(",\"p50Millis\":").append(histogram.getP50Millis());
+			json.append(",\"p95Millis\":").append(histogram.getP95Millis());
+			json.append(",\"p99Millis\":").append(histogram.getP99Millis());
+			json.append(",\"buckets\":").append(toJson(histogram.getBucketCounts())).append("}");
+		}
+		json.append("}}");
+
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		response.getWriter().write(json.toString());
+	}
+
+	private String toJson(long[] values) {
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				json.append(",");
+			json.append(values[i]);
+		}
+		return json.append("]").toString();
+	}
+}
@@ -26,7 +26,6 @@ import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.formentry.FormEntryConstants;
 import org.openmrs.module.formentry.FormEntryService;
-import org.openmrs.module.formentry.FormEntryXsn;
 import org.openmrs.module.formentry.FormEntryXsnMetadata;
 import org.openmrs.web.WebConstants;
 import org.springframework.stereotype.Controller;
@@ -83,7 +82,8 @@ public class ManageXsnArchivesController {
     	// migrate XSNs one by one
         for (Integer xsnId: xsnIds) {
         	try {
-	            FormEntryXsn xsn = service.getFormEntryXsnById(xsnId);
+	            // only the metadata is loaded, the xsn data is streamed to the file
+	            FormEntryXsnMetadata xsn = service.getFormEntryXsnMetadataById(xsnId);
 	            service.migrateFormEntryXsnToFilesystem(xsn);
 	            log.info("migrated Form Entry XSN #" + xsnId + " to the filesystem.");
 	            succeeded++;
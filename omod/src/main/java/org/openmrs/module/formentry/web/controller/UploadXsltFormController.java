@@ -23,6 +23,7 @@ import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.customdatatype.datatype.LongFreeTextDatatype;
 import org.openmrs.module.formentry.FormEntryConstants;
+import org.openmrs.module.formentry.FormEntryXsltCache;
 import org.openmrs.web.WebConstants;
 import org.openmrs.web.attribute.handler.LongFreeTextFileUploadHandler;
 import org.openmrs.web.controller.form.FormResourceController;
@@ -80,6 +81,14 @@ public class UploadXsltFormController {
 		try {
 			new FormResourceController().handleAddFormResource(xsltResource, new BindException("resourceValue",
 			        "resourceValue"), request);
+			FormEntryXsltCache.invalidate(form);
+			try {
+				// compile the new xslt now rather than when the next queue item for the form is processed
+				FormEntryXsltCache.precompile(form);
+			}
+			catch (Exception e) {
+				log.warn("Unable to compile the uploaded xslt for form: " + formId, e);
+			}
 			request.getSession().setAttribute(WebConstants.OPENMRS_MSG_ATTR, "formentry.xslt.upload.success");
 			
 			//the redirect from core doesn't work here
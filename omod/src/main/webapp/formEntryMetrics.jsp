@@ -0,0 +1,77 @@
+<%@ include file="/WEB-INF/template/include.jsp" %>
+
+<openmrs:require privilege="View FormEntry Queue" otherwise="/login.htm" redirect="/module/formentry/formEntryMetrics.htm"/>
+
+<%@ include file="/WEB-INF/template/header.jsp" %>
+<%@ include file="localHeader.jsp" %>
+
+<br />
+<h2><spring:message code="formentry.metrics"/></h2>
+<br />
+
+<spring:message code="formentry.metrics.since"/>: <openmrs:formatDate date="${metrics.since}" type="long"/>
+(<a href="formEntryMetrics.htm?format=json"><spring:message code="formentry.metrics.json"/></a>)
+<br/><br/>
+
+<table cellpadding="4" cellspacing="0">
+	<tr>
+		<th><spring:message code="SystemInfo.name"/></th>
+		<th><spring:message code="SystemInfo.value"/></th>
+	</tr>
+	<tr class="evenRow"><td><spring:message code="formentry.metrics.queueSize"/></td><td>${queueSize}</td></tr>
+	<tr class="oddRow"><td><spring:message code="formentry.metrics.processed"/></td><td>${metrics.processedCount}</td></tr>
+	<tr class="evenRow"><td><spring:message code="formentry.metrics.errored"/></td><td>${metrics.erroredCount}</td></tr>
+	<tr class="oddRow"><td><spring:message code="formentry.metrics.archived"/></td><td>${metrics.archivedCount}</td></tr>
+	<tr class="evenRow">
+		<td><spring:message code="formentry.metrics.lastRun"/></td>
+		<td>
+			<c:choose>
+				<c:when test="${empty metrics.lastRunStarted}"><spring:message code="formentry.metrics.lastRun.none"/></c:when>
+				<c:otherwise>
+					<openmrs:formatDate date="${metrics.lastRunStarted}" type="long"/>:
+					<spring:message code="formentry.metrics.lastRun.summary" arguments="${metrics.lastRunDrained},${metrics.lastRunMillis}"/>
+				</c:otherwise>
+			</c:choose>
+		</td>
+	</tr>
+	<tr class="oddRow">
+		<td><spring:message code="formentry.metrics.drainRate"/></td>
+		<td><fmt:formatNumber value="${metrics.drainRate}" maxFractionDigits="2"/></td>
+	</tr>
+</table>
+
+<br/>
+<b class="boxHeader"><spring:message code="formentry.metrics.stages"/></b>
+<table cellpadding="4" cellspacing="0" class="box">
+	<tr>
+		<th><spring:message code="formentry.metrics.stage"/></th>
+		<th><spring:message code="formentry.metrics.count"/></th>
+		<th><spring:message code="formentry.metrics.mean"/></th>
+		<th>p50</th>
+		<th>p95</th>
+		<th>p99</th>
+		<th><spring:message code="formentry.metrics.max"/></th>
+		<c:forEach items="${bucketBounds}" var="bound">
+			<th>&le; ${bound}</th>
+		</c:forEach>
+		<th>&gt;</th>
+	</tr>
+	<c:forEach items="${metrics.stages}" var="stage" varStatus="status">
+		<tr class="<c:choose><c:when test="${status.index % 2 == 0}">evenRow</c:when><c:otherwise>oddRow</c:otherwise></c:choose>">
+			<td><spring:message code="formentry.metrics.stage.${stage.key}"/></td>
+			<td>${stage.value.count}</td>
+			<td><fmt:formatNumber value="${stage.value.meanMillis}" maxFractionDigits="1"/></td>
+			<td>${stage.value.p50Millis}</td>
+			<td>${stage.value.p95Millis}</td>
+			<td>${stage.value.p99Millis}</td>
+			<td><fmt:formatNumber value="${stage.value.maxMillis}" maxFractionDigits="1"/></td>
+			<c:forEach items="${stage.value.bucketCounts}" var="bucketCount">
+				<td>${bucketCount}</td>
+			</c:forEach>
+		</tr>
+	</c:forEach>
+</table>
+<i><spring:message code="formentry.metrics.millis"/></i>
+
+<br/><br/>
+<%@ include file="/WEB-INF/template/footer.jsp" %>
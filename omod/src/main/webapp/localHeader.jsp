@@ -24,6 +24,14 @@
 			<spring:message code="formentry.info"/>
 		</a>
 	</li>
+	
+	<openmrs:hasPrivilege privilege="View FormEntry Queue">
+		<li <c:if test='<%= request.getRequestURI().contains("formentry/formEntryMetrics") %>'>class="active"</c:if>>
+			<a href="${pageContext.request.contextPath}/module/formentry/formEntryMetrics.htm">
+				<spring:message code="formentry.metrics"/>
+			</a>
+		</li>
+	</openmrs:hasPrivilege>
 
 	<openmrs:hasPrivilege privilege="Edit Forms">
 		<li <c:if test='<%= request.getRequestURI().contains("formentry/setupRelationshipSchemas") %>'>class="active"</c:if>>
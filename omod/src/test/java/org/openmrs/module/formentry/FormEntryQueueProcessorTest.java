@@ -0,0 +1,94 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Contains tests for methods in {@link FormEntryQueueProcessor}
+ */
+public class FormEntryQueueProcessorTest extends BaseModuleContextSensitiveTest {
+
+	private static final String EXTRA_FORM_AND_RESOURCES = "extraFormsAndResources.xml";
+
+	private File dataDir;
+
+	private FormEntryService formEntryService;
+
+	@Before
+	public void setup() throws IOException {
+		dataDir = File.createTempFile("formentry", "test");
+		dataDir.delete();
+		dataDir.mkdir();
+
+		// the processing directories are created next to the queue directory
+		setGlobalProperty(FormEntryConstants.FORMENTRY_GP_QUEUE_DIR, new File(dataDir, "queue").getAbsolutePath());
+		FormEntryConfiguration.clear();
+		FormEntryQueueIndex.invalidate();
+
+		formEntryService = Context.getService(FormEntryService.class);
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		FormEntryConfiguration.clear();
+		FormEntryQueueIndex.invalidate();
+		FileUtils.deleteDirectory(dataDir);
+	}
+
+	/**
+	 * @see {@link FormEntryQueueProcessor#processFormEntryQueue()}
+	 */
+	@Test
+	@Verifies(value = "should process the queue with a single worker in the current thread if there is no daemon token", method = "processFormEntryQueue()")
+	public void processFormEntryQueue_shouldProcessTheQueueWithASingleWorkerInTheCurrentThreadIfThereIsNoDaemonToken()
+	        throws Exception {
+		executeDataSet(EXTRA_FORM_AND_RESOURCES);
+		// the module isn't started in tests, so it hasn't been given a daemon token
+		Assert.assertNull(FormEntryActivator.getDaemonToken());
+		setGlobalProperty(FormEntryConstants.FORMENTRY_GP_QUEUE_PROCESSOR_THREADS, "4");
+		setGlobalProperty(FormEntryConstants.FORMENTRY_GP_QUEUE_BATCH_SIZE, "2");
+
+		// form 1's xslt can't be compiled, so its items end up in the error bin
+		for (int i = 0; i < 3; i++) {
+			FormEntryQueue formEntryQueue = new FormEntryQueue();
+			formEntryQueue.setFormData("<form id=\"1\"><header><uid>uid-" + i + "</uid></header></form>");
+			formEntryService.createFormEntryQueue(formEntryQueue);
+		}
+		int errorCount = formEntryService.getFormEntryErrorSize();
+
+		new FormEntryQueueProcessor().processFormEntryQueue();
+
+		// everything was processed before the call returned, by the one worker
+		Assert.assertEquals(0, formEntryService.getFormEntryQueueSize().intValue());
+		Assert.assertEquals(errorCount + 3, formEntryService.getFormEntryErrorSize().intValue());
+		Assert.assertEquals(0, FormEntryUtil.getFormEntryProcessingDir("worker-1").list().length);
+		Assert.assertFalse(new File(FormEntryUtil.getFormEntryProcessingDir(), "worker-2").exists());
+	}
+
+	private void setGlobalProperty(String property, String value) {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(property, value));
+	}
+}
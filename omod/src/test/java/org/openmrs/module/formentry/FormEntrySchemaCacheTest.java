@@ -0,0 +1,95 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry;
+
+import java.util.Date;
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Form;
+import org.openmrs.api.context.Context;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Contains tests for methods in {@link FormEntrySchemaCache}
+ */
+public class FormEntrySchemaCacheTest extends BaseModuleContextSensitiveTest {
+
+	private Locale locale;
+
+	@Before
+	public void setup() {
+		locale = Context.getLocale();
+		FormEntrySchemaCache.clear();
+	}
+
+	@After
+	public void cleanup() {
+		Context.setLocale(locale);
+		FormEntrySchemaCache.clear();
+	}
+
+	/**
+	 * @see {@link FormEntrySchemaCache#getSchema(Form)}
+	 */
+	@Test
+	@Verifies(value = "should return the cached schema for the same form and locale", method = "getSchema(Form)")
+	public void getSchema_shouldReturnTheCachedSchemaForTheSameFormAndLocale() throws Exception {
+		Form form = Context.getFormService().getForm(1);
+		String schema = FormEntrySchemaCache.getSchema(form);
+
+		Assert.assertSame(schema, FormEntrySchemaCache.getSchema(form));
+	}
+
+	/**
+	 * @see {@link FormEntrySchemaCache#getSchema(Form)}
+	 */
+	@Test
+	@Verifies(value = "should generate the schema again in another locale", method = "getSchema(Form)")
+	public void getSchema_shouldGenerateTheSchemaAgainInAnotherLocale() throws Exception {
+		Form form = Context.getFormService().getForm(1);
+		Context.setLocale(Locale.ENGLISH);
+		String english = FormEntrySchemaCache.getSchema(form);
+
+		Context.setLocale(Locale.FRENCH);
+		String french = FormEntrySchemaCache.getSchema(form);
+		Assert.assertNotSame(english, french);
+
+		// generating the french schema didn't replace the english one
+		Context.setLocale(Locale.ENGLISH);
+		Assert.assertSame(english, FormEntrySchemaCache.getSchema(form));
+		Context.setLocale(Locale.FRENCH);
+		Assert.assertSame(french, FormEntrySchemaCache.getSchema(form));
+	}
+
+	/**
+	 * @see {@link FormEntrySchemaCache#getSchema(Form)}
+	 */
+	@Test
+	@Verifies(value = "should generate the schema again when the form is changed", method = "getSchema(Form)")
+	public void getSchema_shouldGenerateTheSchemaAgainWhenTheFormIsChanged() throws Exception {
+		Form form = Context.getFormService().getForm(1);
+		String schema = FormEntrySchemaCache.getSchema(form);
+
+		form.setDateChanged(new Date());
+		String changed = FormEntrySchemaCache.getSchema(form);
+
+		Assert.assertNotSame(schema, changed);
+		Assert.assertSame(changed, FormEntrySchemaCache.getSchema(form));
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.ConceptAnswer;
+import org.openmrs.Encounter;
+import org.openmrs.Form;
+import org.openmrs.FormField;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Contains tests for methods in {@link FormEntryService}
+ */
+public class FormEntryServiceTest extends BaseModuleContextSensitiveTest {
+
+	private FormEntryService service;
+
+	@Before
+	public void setup() {
+		service = Context.getService(FormEntryService.class);
+	}
+
+	/**
+	 * @see {@link FormEntryService#getFormConcepts(Form)}
+	 */
+	@Test
+	@Verifies(value = "should return the concepts of the form fields and of their answers", method = "getFormConcepts(Form)")
+	public void getFormConcepts_shouldReturnTheConceptsOfTheFormFieldsAndOfTheirAnswers() throws Exception {
+		Form form = Context.getFormService().getForm(1);
+
+		Set<Integer> expected = new HashSet<Integer>();
+		for (FormField formField : form.getFormFields()) {
+			Concept concept = formField.getField().getConcept();
+			if (concept == null)
+				continue;
+			expected.add(concept.getConceptId());
+			for (ConceptAnswer answer : concept.getAnswers(true))
+				expected.add(answer.getAnswerConcept().getConceptId());
+		}
+		//sanity check that the form uses concepts
+		Assert.assertFalse(expected.isEmpty());
+
+		Map<Integer, Concept> concepts = service.getFormConcepts(form);
+		Assert.assertEquals(expected, concepts.keySet());
+		for (Map.Entry<Integer, Concept> concept : concepts.entrySet())
+			Assert.assertEquals(concept.getKey(), concept.getValue().getConceptId());
+	}
+
+	/**
+	 * @see {@link FormEntryService#getFormConcepts(Form)}
+	 */
+	@Test
+	@Verifies(value = "should give the builders the same schema and template as loading the concepts per field", method = "getFormConcepts(Form)")
+	public void getFormConcepts_shouldGiveTheBuildersTheSameSchemaAndTemplateAsLoadingTheConceptsPerField()
+	        throws Exception {
+		Form form = Context.getFormService().getForm(1);
+		String url = FormEntryUtil.getFormAbsoluteUrl(form);
+		Map<Integer, Concept> concepts = service.getFormConcepts(form);
+
+		Assert.assertEquals(new FormSchemaBuilder(form).getSchema(), new FormSchemaBuilder(form, concepts).getSchema());
+		Assert.assertEquals(new FormXmlTemplateBuilder(form, url).getXmlTemplate(false), new FormXmlTemplateBuilder(
+		        form, url, concepts).getXmlTemplate(false));
+		Assert.assertEquals(new FormXmlTemplateBuilder(form, url).getXmlTemplate(true), new FormXmlTemplateBuilder(
+		        form, url, concepts).getXmlTemplate(true));
+	}
+
+	/**
+	 * @see {@link FormEntryService#getLatestEncounters(Patient,int)}
+	 */
+	@Test
+	@Verifies(value = "should return at most maxResults encounters newest first", method = "getLatestEncounters(Patient,int)")
+	public void getLatestEncounters_shouldReturnAtMostMaxResultsEncountersNewestFirst() throws Exception {
+		Patient patient = Context.getPatientService().getPatient(7);
+		//sanity check that the patient has more encounters than the limit
+		Assert.assertTrue(Context.getEncounterService().getEncountersByPatient(patient).size() > 2);
+
+		List<Encounter> encounters = service.getLatestEncounters(patient, 2);
+
+		Assert.assertEquals(2, encounters.size());
+		Assert.assertFalse(encounters.get(0).getEncounterDatetime().before(encounters.get(1).getEncounterDatetime()));
+		for (Encounter encounter : Context.getEncounterService().getEncountersByPatient(patient)) {
+			if (!encounters.contains(encounter))
+				Assert.assertFalse(encounter.getEncounterDatetime().after(encounters.get(1).getEncounterDatetime()));
+		}
+	}
+
+	/**
+	 * @see {@link FormEntryService#getLatestEncounters(Patient,int)}
+	 */
+	@Test
+	@Verifies(value = "should return all the encounters if maxResults is 0", method = "getLatestEncounters(Patient,int)")
+	public void getLatestEncounters_shouldReturnAllTheEncountersIfMaxResultsIs0() throws Exception {
+		Patient patient = Context.getPatientService().getPatient(7);
+
+		Assert.assertEquals(new HashSet<Encounter>(Context.getEncounterService().getEncountersByPatient(patient)),
+		    new HashSet<Encounter>(service.getLatestEncounters(patient, 0)));
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Form;
+import org.openmrs.api.FormService;
+import org.openmrs.api.context.Context;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Contains tests for methods in {@link FormEntryTemplateCache}
+ */
+public class FormEntryTemplateCacheTest extends BaseModuleContextSensitiveTest {
+
+	private static final String EXTRA_FORM_AND_RESOURCES = "extraFormsAndResources.xml";
+
+	private FormService service;
+
+	@Before
+	public void setup() {
+		service = Context.getFormService();
+		FormEntryTemplateCache.clear();
+	}
+
+	@After
+	public void cleanup() {
+		FormEntryTemplateCache.clear();
+	}
+
+	/**
+	 * @see {@link FormEntryTemplateCache#getTemplate(Form)}
+	 */
+	@Test
+	@Verifies(value = "should parse the template again when the template resource is replaced", method = "getTemplate(Form)")
+	public void getTemplate_shouldParseTheTemplateAgainWhenTheTemplateResourceIsReplaced() throws Exception {
+		executeDataSet(EXTRA_FORM_AND_RESOURCES);
+		Form form = service.getForm(1);
+		Template template = FormEntryTemplateCache.getTemplate(form);
+		Assert.assertEquals("template text", merge(template));
+		Assert.assertSame(template, FormEntryTemplateCache.getTemplate(form));
+
+		service.purgeFormResource(service.getFormResource(form, FormEntryConstants.FORMENTRY_TEMPLATE_FORM_RESOURCE_NAME));
+		FormEntryUtil.saveXsltorTemplateFormResource(form, "new template text",
+		    FormEntryConstants.FORMENTRY_TEMPLATE_FORM_RESOURCE_NAME, null);
+
+		Template replaced = FormEntryTemplateCache.getTemplate(form);
+		Assert.assertNotSame(template, replaced);
+		Assert.assertEquals("new template text", merge(replaced));
+		Assert.assertSame(replaced, FormEntryTemplateCache.getTemplate(form));
+	}
+
+	/**
+	 * @see {@link FormEntryTemplateCache#getTemplate(Form)}
+	 */
+	@Test
+	@Verifies(value = "should return null if the form has no template resource", method = "getTemplate(Form)")
+	public void getTemplate_shouldReturnNullIfTheFormHasNoTemplateResource() throws Exception {
+		executeDataSet(EXTRA_FORM_AND_RESOURCES);
+		Assert.assertNull(FormEntryTemplateCache.getTemplate(service.getForm(10)));
+	}
+
+	/**
+	 * @see {@link FormEntryTemplateCache#getVelocityEngine()}
+	 */
+	@Test
+	@Verifies(value = "should be shared by threads using it at the same time", method = "getVelocityEngine()")
+	public void getVelocityEngine_shouldBeSharedByThreadsUsingItAtTheSameTime() throws Exception {
+		executeDataSet(EXTRA_FORM_AND_RESOURCES);
+		// the template is loaded in this thread, the others have no session to load it with
+		final Template template = FormEntryTemplateCache.getTemplate(service.getForm(1));
+		final VelocityEngine engine = FormEntryTemplateCache.getVelocityEngine();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Throwable> errors = new ArrayList<Throwable>();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			final int threadNumber = i;
+			Thread thread = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < 50; j++) {
+							Assert.assertSame(engine, FormEntryTemplateCache.getVelocityEngine());
+
+							VelocityContext velocityContext = new VelocityContext();
+							velocityContext.put("thread", threadNumber);
+							velocityContext.put("iteration", j);
+							StringWriter w = new StringWriter();
+							FormEntryTemplateCache.getVelocityEngine().evaluate(velocityContext, w, "test",
+							    "$thread-$iteration");
+							Assert.assertEquals(threadNumber + "-" + j, w.toString());
+
+							Assert.assertEquals("template text", merge(template));
+						}
+					}
+					catch (Throwable t) {
+						synchronized (errors) {
+							errors.add(t);
+						}
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+
+		Assert.assertTrue("errors: " + errors, errors.isEmpty());
+	}
+
+	private String merge(Template template) throws Exception {
+		StringWriter out = new StringWriter();
+		template.merge(new VelocityContext(), out);
+		return out.toString();
+	}
+}
@@ -13,17 +13,27 @@
  */
 package org.openmrs.module.formentry;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.openmrs.Form;
+import org.openmrs.User;
 import org.openmrs.api.FormService;
 import org.openmrs.api.context.Context;
 import org.openmrs.customdatatype.CustomDatatypeHandler;
+import org.openmrs.module.formentry.cab.CabinetReader;
+import org.openmrs.util.OpenmrsUtil;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.test.Verifies;
 
@@ -140,4 +150,150 @@ public class FormEntryUtilTest extends BaseModuleContextSensitiveTest {
 		//shouldn't have changed
 		Assert.assertSame(newXslt, FormEntryUtil.getFormXslt(form));
 	}
+	
+	/**
+	 * @see {@link FormEntryUtil#getFormXsltVersion(Form)}
+	 */
+	@Test
+	@Verifies(value = "should return a different version when the xslt resource is replaced", method = "getFormXsltVersion(Form)")
+	public void getFormXsltVersion_shouldReturnADifferentVersionWhenTheXsltResourceIsReplaced() throws Exception {
+		executeDataSet(EXTRA_FORM_AND_RESOURCES);
+		final Form form = service.getForm(1);
+		final String originalVersion = FormEntryUtil.getFormXsltVersion(form);
+		//sanity check that the form has a custom xslt
+		Assert.assertFalse("default".equals(originalVersion));
+		
+		service.purgeFormResource(service.getFormResource(form, FormEntryConstants.FORMENTRY_XSLT_FORM_RESOURCE_NAME));
+		FormEntryUtil.saveXsltorTemplateFormResource(form, "New test xslt",
+		    FormEntryConstants.FORMENTRY_XSLT_FORM_RESOURCE_NAME, null);
+		
+		Assert.assertFalse(originalVersion.equals(FormEntryUtil.getFormXsltVersion(form)));
+	}
+	
+	/**
+	 * @see {@link FormEntryUtil#createOutFile(File,Date,User)}
+	 */
+	@Test
+	@Verifies(value = "should create a new empty file", method = "createOutFile(File,Date,User)")
+	public void createOutFile_shouldCreateANewEmptyFile() throws Exception {
+		File dir = createTempDir();
+		try {
+			Date now = new Date();
+			File first = FormEntryUtil.createOutFile(dir, now, Context.getAuthenticatedUser());
+			File second = FormEntryUtil.createOutFile(dir, now, Context.getAuthenticatedUser());
+			
+			Assert.assertTrue(first.isFile());
+			Assert.assertEquals(0, first.length());
+			Assert.assertFalse(first.equals(second));
+		}
+		finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+	
+	/**
+	 * @see {@link FormEntryUtil#moveFile(File,File)}
+	 */
+	@Test
+	@Verifies(value = "should rename the file to the target", method = "moveFile(File,File)")
+	public void moveFile_shouldRenameTheFileToTheTarget() throws Exception {
+		File dir = createTempDir();
+		try {
+			File file = new File(dir, "queue.xml");
+			FileUtils.writeStringToFile(file, "queue item");
+			File target = FormEntryUtil.createOutFile(dir, new Date(), Context.getAuthenticatedUser());
+			
+			FormEntryUtil.moveFile(file, target);
+			
+			Assert.assertFalse(file.exists());
+			Assert.assertEquals("queue item", FileUtils.readFileToString(target));
+		}
+		finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+	
+	/**
+	 * @see {@link FormEntryUtil#moveFile(File,File)}
+	 */
+	@Test
+	@Verifies(value = "should not replace a file with contents", method = "moveFile(File,File)")
+	public void moveFile_shouldNotReplaceAFileWithContents() throws Exception {
+		File dir = createTempDir();
+		try {
+			File file = new File(dir, "queue.xml");
+			FileUtils.writeStringToFile(file, "queue item");
+			File target = new File(dir, "archive.xml");
+			FileUtils.writeStringToFile(target, "archived item");
+			
+			try {
+				FormEntryUtil.moveFile(file, target);
+				Assert.fail("moved the file onto an existing file");
+			}
+			catch (IOException e) {
+				// expected
+			}
+			
+			Assert.assertEquals("queue item", FileUtils.readFileToString(file));
+			Assert.assertEquals("archived item", FileUtils.readFileToString(target));
+		}
+		finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+	
+	/**
+	 * @see {@link FormEntryUtil#writeCurrentXSN(Form,boolean,OutputStream)}
+	 */
+	@Test
+	@Verifies(value = "should write the same xsn contents as getCurrentXSN", method = "writeCurrentXSN(Form,boolean,OutputStream)")
+	public void writeCurrentXSN_shouldWriteTheSameXsnContentsAsGetCurrentXSN() throws Exception {
+		Form form = service.getForm(1);
+		
+		ByteArrayOutputStream inMemory = new ByteArrayOutputStream();
+		Assert.assertTrue(FormEntryUtil.writeCurrentXSN(form, true, inMemory));
+		
+		Object[] streamAndDir = FormEntryUtil.getCurrentXSN(form, true);
+		InputStream fileBased = (InputStream) streamAndDir[0];
+		Map<String, byte[]> expected;
+		try {
+			expected = new CabinetReader(fileBased).getFiles();
+		}
+		finally {
+			fileBased.close();
+			OpenmrsUtil.deleteDirectory((File) streamAndDir[1]);
+		}
+		
+		Map<String, byte[]> actual = new CabinetReader(inMemory.toByteArray()).getFiles();
+		Assert.assertEquals(expected.keySet(), actual.keySet());
+		for (Map.Entry<String, byte[]> file : expected.entrySet())
+			Assert.assertTrue(file.getKey() + " differs", Arrays.equals(file.getValue(), actual.get(file.getKey())));
+	}
+	
+	/**
+	 * @see {@link FormEntryUtil#rebuildXSN(Form)}
+	 */
+	@Test
+	@Verifies(value = "should not rebuild the xsn if the fingerprint matches", method = "rebuildXSN(Form)")
+	public void rebuildXSN_shouldNotRebuildTheXsnIfTheFingerprintMatches() throws Exception {
+		Form form = service.getForm(1);
+		FormEntryService formEntryService = Context.getService(FormEntryService.class);
+		FormEntryXsn xsn = new FormEntryXsn();
+		xsn.setForm(form);
+		// not a valid xsn, rebuilding it would fail
+		xsn.setXsnData("xsn data".getBytes());
+		xsn.setFingerprint(FormEntryUtil.getXSNFingerprint(form));
+		formEntryService.createFormEntryXsn(xsn);
+		Context.flushSession();
+		
+		Assert.assertFalse(FormEntryUtil.rebuildXSN(form));
+		Assert.assertEquals(xsn.getFormEntryXsnId(), formEntryService.getFormEntryXsn(form).getFormEntryXsnId());
+	}
+	
+	private File createTempDir() throws IOException {
+		File dir = File.createTempFile("formentry", "test");
+		dir.delete();
+		dir.mkdir();
+		return dir;
+	}
 }
@@ -0,0 +1,123 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Contains tests for methods in {@link FormEntryXsnCache}
+ */
+public class FormEntryXsnCacheTest extends BaseModuleContextSensitiveTest {
+
+	@Before
+	public void setup() {
+		FormEntryXsnCache.clear();
+	}
+
+	@After
+	public void cleanup() {
+		FormEntryXsnCache.clear();
+	}
+
+	/**
+	 * @see {@link FormEntryXsnCache#put(Integer,Integer,byte[])}
+	 */
+	@Test
+	@Verifies(value = "should drop the least recently used xsns when the memory limit is exceeded", method = "put(Integer,Integer,byte[])")
+	public void put_shouldDropTheLeastRecentlyUsedXsnsWhenTheMemoryLimitIsExceeded() throws Exception {
+		int entrySize = (int) FormEntryXsnCache.MAX_MEMORY_ENTRY_BYTES;
+		int fitting = (int) (FormEntryXsnCache.MAX_MEMORY_BYTES / entrySize);
+		for (int formId = 1; formId <= fitting; formId++)
+			FormEntryXsnCache.put(formId, 100 + formId, new byte[entrySize]);
+
+		// downloading the first xsn makes the second one the least recently used
+		Assert.assertNotNull(FormEntryXsnCache.getFromMemory(1, 101));
+		FormEntryXsnCache.put(fitting + 1, 100 + fitting + 1, new byte[entrySize]);
+
+		Assert.assertNull(FormEntryXsnCache.getFromMemory(2, 102));
+		Assert.assertNotNull(FormEntryXsnCache.getFromMemory(1, 101));
+		for (int formId = 3; formId <= fitting + 1; formId++)
+			Assert.assertNotNull(FormEntryXsnCache.getFromMemory(formId, 100 + formId));
+	}
+
+	/**
+	 * @see {@link FormEntryXsnCache#put(Integer,Integer,byte[])}
+	 */
+	@Test
+	@Verifies(value = "should replace the previous xsn of the form", method = "put(Integer,Integer,byte[])")
+	public void put_shouldReplaceThePreviousXsnOfTheForm() throws Exception {
+		int entrySize = (int) FormEntryXsnCache.MAX_MEMORY_ENTRY_BYTES;
+		FormEntryXsnCache.put(1, 101, new byte[entrySize]);
+		FormEntryXsnCache.put(1, 102, new byte[entrySize]);
+
+		Assert.assertNull(FormEntryXsnCache.getFromMemory(1, 101));
+		Assert.assertNotNull(FormEntryXsnCache.getFromMemory(1, 102));
+
+		// the replaced xsn no longer counts towards the limit, so all the others still fit
+		int fitting = (int) (FormEntryXsnCache.MAX_MEMORY_BYTES / entrySize);
+		for (int formId = 2; formId <= fitting; formId++)
+			FormEntryXsnCache.put(formId, 100 + formId, new byte[entrySize]);
+		Assert.assertNotNull(FormEntryXsnCache.getFromMemory(1, 102));
+	}
+
+	/**
+	 * @see {@link FormEntryXsnCache#invalidate(Integer)}
+	 */
+	@Test
+	@Verifies(value = "should remove the xsn from memory and disk", method = "invalidate(Integer)")
+	public void invalidate_shouldRemoveTheXsnFromMemoryAndDisk() throws Exception {
+		FormEntryXsnCache.put(1, 101, "xsn data".getBytes());
+		File file = FormEntryXsnCache.getCacheFile(1, 101);
+		FileUtils.writeStringToFile(file, "xsn data");
+
+		FormEntryXsnCache.invalidate(1);
+
+		Assert.assertNull(FormEntryXsnCache.getFromMemory(1, 101));
+		Assert.assertFalse(file.exists());
+	}
+
+	/**
+	 * @see {@link FormEntryXsnCache#writeCacheFile(Integer,Integer,File,OutputStream)}
+	 */
+	@Test
+	@Verifies(value = "should fall back to the database if the cache file is gone", method = "writeCacheFile(Integer,Integer,File,OutputStream)")
+	public void writeCacheFile_shouldFallBackToTheDatabaseIfTheCacheFileIsGone() throws Exception {
+		FormEntryService service = Context.getService(FormEntryService.class);
+		FormEntryXsn xsn = new FormEntryXsn();
+		xsn.setForm(Context.getFormService().getForm(1));
+		xsn.setXsnData("xsn data".getBytes());
+		service.createFormEntryXsn(xsn);
+		// the data is read with plain jdbc
+		Context.flushSession();
+
+		// as if an invalidation deleted the file after it was found
+		File file = FormEntryXsnCache.getCacheFile(1, xsn.getFormEntryXsnId());
+		file.delete();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertTrue(FormEntryXsnCache.writeCacheFile(1, xsn.getFormEntryXsnId(), file, out));
+		Assert.assertEquals("xsn data", out.toString());
+		Assert.assertFalse(file.exists());
+	}
+}
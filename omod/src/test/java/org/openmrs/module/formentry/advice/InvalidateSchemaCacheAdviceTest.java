@@ -0,0 +1,90 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry.advice;
+
+import java.lang.reflect.Method;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Form;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.formentry.FormEntrySchemaCache;
+import org.openmrs.module.formentry.FormEntryService;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Contains tests for methods in {@link InvalidateSchemaCacheAdvice}
+ */
+public class InvalidateSchemaCacheAdviceTest extends BaseModuleContextSensitiveTest {
+
+	private Method saveConcept;
+
+	@Before
+	public void setup() throws Exception {
+		saveConcept = ConceptService.class.getMethod("saveConcept", Concept.class);
+		FormEntrySchemaCache.clear();
+	}
+
+	@After
+	public void cleanup() {
+		FormEntrySchemaCache.clear();
+	}
+
+	/**
+	 * @see {@link InvalidateSchemaCacheAdvice#afterReturning(Object,Method,Object[],Object)}
+	 */
+	@Test
+	@Verifies(value = "should evict the schemas of the forms that use a saved concept", method = "afterReturning(Object,Method,Object[],Object)")
+	public void afterReturning_shouldEvictTheSchemasOfTheFormsThatUseASavedConcept() throws Exception {
+		Form form = Context.getFormService().getForm(1);
+		Set<Integer> conceptIds = Context.getService(FormEntryService.class).getFormConcepts(form).keySet();
+		//sanity check that the form uses concepts
+		Assert.assertFalse(conceptIds.isEmpty());
+		String schema = FormEntrySchemaCache.getSchema(form);
+
+		Concept concept = Context.getConceptService().getConcept(conceptIds.iterator().next());
+		new InvalidateSchemaCacheAdvice().afterReturning(concept, saveConcept, new Object[] { concept }, null);
+
+		Assert.assertNotSame(schema, FormEntrySchemaCache.getSchema(form));
+	}
+
+	/**
+	 * @see {@link InvalidateSchemaCacheAdvice#afterReturning(Object,Method,Object[],Object)}
+	 */
+	@Test
+	@Verifies(value = "should keep the schemas of the forms that don't use a saved concept", method = "afterReturning(Object,Method,Object[],Object)")
+	public void afterReturning_shouldKeepTheSchemasOfTheFormsThatDontUseASavedConcept() throws Exception {
+		Form form = Context.getFormService().getForm(1);
+		Set<Integer> conceptIds = Context.getService(FormEntryService.class).getFormConcepts(form).keySet();
+		String schema = FormEntrySchemaCache.getSchema(form);
+
+		Concept concept = null;
+		for (Concept candidate : Context.getConceptService().getAllConcepts()) {
+			if (!conceptIds.contains(candidate.getConceptId())) {
+				concept = candidate;
+				break;
+			}
+		}
+		Assert.assertNotNull(concept);
+		new InvalidateSchemaCacheAdvice().afterReturning(concept, saveConcept, new Object[] { concept }, null);
+
+		Assert.assertSame(schema, FormEntrySchemaCache.getSchema(form));
+	}
+}
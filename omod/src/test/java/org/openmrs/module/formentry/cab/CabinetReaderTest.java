@@ -0,0 +1,57 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry.cab;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+public class CabinetReaderTest {
+
+	private static final String XSN = "org/openmrs/module/formentry/test/include/pre1.4.xsn";
+
+	/**
+	 * @see {@link CabinetReader#getFiles()}
+	 */
+	@Test
+	@Verifies(value = "should expand all the files of an mszip compressed xsn", method = "getFiles()")
+	public void getFiles_shouldExpandAllTheFilesOfAnMszipCompressedXsn() throws Exception {
+		InputStream in = getClass().getClassLoader().getResourceAsStream(XSN);
+		Map<String, byte[]> files;
+		try {
+			files = new CabinetReader(in).getFiles();
+		}
+		finally {
+			in.close();
+		}
+
+		Assert.assertEquals(8, files.size());
+		Assert.assertEquals(4803, files.get("manifest.xsf").length);
+		Assert.assertEquals(35714, files.get("Page1.xsl").length);
+		Assert.assertTrue(new String(files.get("FormEntry.xsd"), "UTF-8").startsWith("<?xml"));
+	}
+
+	/**
+	 * @see {@link CabinetReader#CabinetReader(byte[])}
+	 */
+	@Test(expected = IOException.class)
+	@Verifies(value = "should fail if the data is not a cabinet", method = "CabinetReader(byte[])")
+	public void CabinetReader_shouldFailIfTheDataIsNotACabinet() throws Exception {
+		new CabinetReader("PK not a cabinet".getBytes("UTF-8"));
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry.cab;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+public class CabinetWriterTest {
+
+	private static final String XSN = "org/openmrs/module/formentry/test/include/pre1.4.xsn";
+
+	/**
+	 * @see {@link CabinetWriter#toByteArray()}
+	 */
+	@Test
+	@Verifies(value = "should write a cabinet that reads back to the same files", method = "toByteArray()")
+	public void toByteArray_shouldWriteACabinetThatReadsBackToTheSameFiles() throws Exception {
+		Map<String, byte[]> files = readTestXsn();
+
+		// spans several blocks and doesn't compress
+		byte[] random = new byte[100000];
+		new Random(1).nextBytes(random);
+		files.put("random.bin", random);
+		files.put("empty.txt", new byte[0]);
+
+		for (boolean compress : new boolean[] { true, false }) {
+			CabinetWriter writer = new CabinetWriter(compress);
+			for (Map.Entry<String, byte[]> file : files.entrySet())
+				writer.addFile(file.getKey(), file.getValue());
+
+			Map<String, byte[]> read = new CabinetReader(writer.toByteArray()).getFiles();
+			Assert.assertEquals(files.keySet(), read.keySet());
+			for (String name : files.keySet())
+				Assert.assertTrue(name, Arrays.equals(files.get(name), read.get(name)));
+		}
+	}
+
+	/**
+	 * @see {@link CabinetWriter#toByteArray()}
+	 */
+	@Test
+	@Verifies(value = "should write the same cabinet for the same files", method = "toByteArray()")
+	public void toByteArray_shouldWriteTheSameCabinetForTheSameFiles() throws Exception {
+		Map<String, byte[]> files = readTestXsn();
+
+		CabinetWriter first = new CabinetWriter();
+		CabinetWriter second = new CabinetWriter();
+		for (Map.Entry<String, byte[]> file : files.entrySet()) {
+			first.addFile(file.getKey(), file.getValue());
+			second.addFile(file.getKey(), file.getValue());
+		}
+
+		Assert.assertTrue(Arrays.equals(first.toByteArray(), second.toByteArray()));
+	}
+
+	private Map<String, byte[]> readTestXsn() throws Exception {
+		InputStream in = getClass().getClassLoader().getResourceAsStream(XSN);
+		try {
+			return new CabinetReader(in).getFiles();
+		}
+		finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry.web;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.Relationship;
+import org.openmrs.RelationshipType;
+import org.openmrs.api.context.Context;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Contains tests for methods in {@link FormDownloadServlet}
+ */
+public class FormDownloadServletTest extends BaseModuleContextSensitiveTest {
+
+	/**
+	 * @see {@link FormDownloadServlet#setRelatedPatients(Patient,List)}
+	 */
+	@Test
+	@Verifies(value = "should replace related persons with their patients", method = "setRelatedPatients(Patient,List)")
+	public void setRelatedPatients_shouldReplaceRelatedPersonsWithTheirPatients() throws Exception {
+		Patient patient = Context.getPatientService().getPatient(2);
+		Patient related = Context.getPatientService().getPatient(7);
+		Relationship relationship = new Relationship(patient, createPatient(7), new RelationshipType(1));
+		Relationship reverse = new Relationship(createPatient(7), patient, new RelationshipType(1));
+
+		new FormDownloadServlet().setRelatedPatients(patient, toList(relationship, reverse));
+
+		Assert.assertSame(related, relationship.getPersonB());
+		Assert.assertSame(related, reverse.getPersonA());
+	}
+
+	/**
+	 * @see {@link FormDownloadServlet#setRelatedPatients(Patient,List)}
+	 */
+	@Test
+	@Verifies(value = "should keep a related person whose patient can't be loaded", method = "setRelatedPatients(Patient,List)")
+	public void setRelatedPatients_shouldKeepARelatedPersonWhosePatientCantBeLoaded() throws Exception {
+		Patient patient = Context.getPatientService().getPatient(2);
+		Patient missing = createPatient(999999);
+		Relationship relationship = new Relationship(patient, missing, new RelationshipType(1));
+		Relationship reverse = new Relationship(missing, patient, new RelationshipType(1));
+
+		new FormDownloadServlet().setRelatedPatients(patient, toList(relationship, reverse));
+
+		Assert.assertSame(missing, relationship.getPersonB());
+		Assert.assertSame(missing, reverse.getPersonA());
+	}
+
+	private Patient createPatient(Integer patientId) {
+		Patient patient = new Patient();
+		patient.setPatientId(patientId);
+		return patient;
+	}
+
+	private List<Relationship> toList(Relationship... relationships) {
+		List<Relationship> list = new ArrayList<Relationship>();
+		for (Relationship relationship : relationships)
+			list.add(relationship);
+		return list;
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.formentry.web;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * Contains tests for the conditional request handling of {@link XsnDownloadServlet}
+ */
+public class XsnDownloadServletTest {
+
+	private static final long MODIFIED = 1357000000123L;
+
+	private static final String ETAG = "" + MODIFIED;
+
+	private XsnDownloadServlet servlet = new XsnDownloadServlet();
+
+	/**
+	 * @see {@link XsnDownloadServlet#isNotModified(HttpServletRequest,String,long)}
+	 */
+	@Test
+	@Verifies(value = "should return true if the etag is in If-None-Match", method = "isNotModified(HttpServletRequest,String,long)")
+	public void isNotModified_shouldReturnTrueIfTheEtagIsInIfNoneMatch() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader("If-None-Match", "\"1\", W/\"" + ETAG + "\"");
+		Assert.assertTrue(servlet.isNotModified(request, ETAG, MODIFIED));
+
+		request = new MockHttpServletRequest();
+		request.addHeader("If-None-Match", ETAG);
+		Assert.assertTrue(servlet.isNotModified(request, ETAG, MODIFIED));
+	}
+
+	/**
+	 * @see {@link XsnDownloadServlet#isNotModified(HttpServletRequest,String,long)}
+	 */
+	@Test
+	@Verifies(value = "should return false if the etag is not in If-None-Match even if If-Modified-Since matches", method = "isNotModified(HttpServletRequest,String,long)")
+	public void isNotModified_shouldReturnFalseIfTheEtagIsNotInIfNoneMatchEvenIfIfModifiedSinceMatches() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader("If-None-Match", "\"" + (MODIFIED - 1000) + "\"");
+		request.addHeader("If-Modified-Since", MODIFIED);
+		Assert.assertFalse(servlet.isNotModified(request, ETAG, MODIFIED));
+	}
+
+	/**
+	 * @see {@link XsnDownloadServlet#isNotModified(HttpServletRequest,String,long)}
+	 */
+	@Test
+	@Verifies(value = "should return true if the xsn was not modified since If-Modified-Since", method = "isNotModified(HttpServletRequest,String,long)")
+	public void isNotModified_shouldReturnTrueIfTheXsnWasNotModifiedSinceIfModifiedSince() throws Exception {
+		// http dates don't have milliseconds
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader("If-Modified-Since", MODIFIED - 123);
+		Assert.assertTrue(servlet.isNotModified(request, ETAG, MODIFIED));
+
+		request = new MockHttpServletRequest();
+		request.addHeader("If-Modified-Since", MODIFIED + 60000);
+		Assert.assertTrue(servlet.isNotModified(request, ETAG, MODIFIED));
+	}
+
+	/**
+	 * @see {@link XsnDownloadServlet#isNotModified(HttpServletRequest,String,long)}
+	 */
+	@Test
+	@Verifies(value = "should return false if the xsn was modified since If-Modified-Since", method = "isNotModified(HttpServletRequest,String,long)")
+	public void isNotModified_shouldReturnFalseIfTheXsnWasModifiedSinceIfModifiedSince() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader("If-Modified-Since", MODIFIED - 1123);
+		Assert.assertFalse(servlet.isNotModified(request, ETAG, MODIFIED));
+	}
+
+	/**
+	 * @see {@link XsnDownloadServlet#isNotModified(HttpServletRequest,String,long)}
+	 */
+	@Test
+	@Verifies(value = "should return false if the request has no conditional headers", method = "isNotModified(HttpServletRequest,String,long)")
+	public void isNotModified_shouldReturnFalseIfTheRequestHasNoConditionalHeaders() throws Exception {
+		Assert.assertFalse(servlet.isNotModified(new MockHttpServletRequest(), ETAG, MODIFIED));
+	}
+}